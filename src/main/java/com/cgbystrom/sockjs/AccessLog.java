@@ -0,0 +1,201 @@
+package com.cgbystrom.sockjs;
+
+import org.codehaus.jackson.io.JsonStringEncoder;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log of the requests handled by a ServiceRouter, one JSON object per line.
+ *
+ * The I/O workers only copy the fields of a request into the next entry of a ring allocated up front,
+ * claimed with a compare and set. A daemon thread writes out whatever entries are ready in one batch,
+ * then flushes the file. Should the ring be full, the request is dropped and counted rather than making
+ * the worker wait for the file.
+ */
+public class AccessLog {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(AccessLog.class);
+    /** Time the writer sleeps when it finds no entries */
+    private static final long IDLE_WAIT = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final File file;
+    private final Entry[] entries;
+    private final int mask;
+    /** Sequence of the next entry to claim */
+    private final AtomicLong claimed = new AtomicLong();
+    /** Sequence of the next entry to write, entries before it can be claimed again */
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean isRunning;
+    private Thread writer;
+
+    /**
+     * @param file     File appended to
+     * @param capacity Requests that can wait for the writer, rounded up to a power of two
+     */
+    public AccessLog(File file, int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.file = file;
+        this.entries = new Entry[size];
+        for (int i = 0; i < size; i++) {
+            entries[i] = new Entry(i - size);
+        }
+        this.mask = size - 1;
+    }
+
+    public synchronized void start() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 64 * 1024);
+        isRunning = true;
+        writer = new Thread("sockjs-access-log") {
+            @Override
+            public void run() {
+                writeEntries(out);
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Stops the writer once it has written the entries recorded so far */
+    public synchronized void stop() throws InterruptedException {
+        if (writer == null) {
+            return;
+        }
+        isRunning = false;
+        LockSupport.unpark(writer);
+        writer.join();
+        writer = null;
+    }
+
+    /** @return Requests written to the file */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /** @return Requests dropped for the ring being full */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Records a request without blocking, or drops it if the writer is too far behind
+     *
+     * @param duration Microseconds from the request until the response was written
+     */
+    public void record(long timestamp, String method, String uri, String transport, String sessionId,
+                       int status, long bytes, long duration) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - written.get() >= entries.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        final Entry entry = entries[(int) (sequence & mask)];
+        entry.timestamp = timestamp;
+        entry.method = method;
+        entry.uri = uri;
+        entry.transport = transport;
+        entry.sessionId = sessionId;
+        entry.status = status;
+        entry.bytes = bytes;
+        entry.duration = duration;
+        // Hands the entry over to the writer
+        entry.sequence = sequence;
+    }
+
+    private void writeEntries(Writer out) {
+        final JsonStringEncoder encoder = new JsonStringEncoder();
+        final StringBuilder line = new StringBuilder(256);
+        try {
+            while (true) {
+                long next = written.get();
+                Entry entry = entries[(int) (next & mask)];
+                if (entry.sequence != next) {
+                    if (!isRunning) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_WAIT);
+                    continue;
+                }
+
+                // Everything ready is written as one batch, then flushed
+                do {
+                    line.setLength(0);
+                    entry.format(line, encoder);
+                    entry.method = entry.uri = entry.transport = entry.sessionId = null;
+                    written.lazySet(++next);
+                    out.append(line);
+                    entry = entries[(int) (next & mask)];
+                } while (entry.sequence == next);
+                out.flush();
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write access log " + file + ", no longer writing it", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                logger.debug("Unable to close access log " + file, e);
+            }
+        }
+    }
+
+    private static class Entry {
+        /** Sequence of the request in the entry, once it is complete */
+        volatile long sequence;
+        long timestamp;
+        String method;
+        String uri;
+        String transport;
+        String sessionId;
+        int status;
+        long bytes;
+        long duration;
+
+        Entry(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void format(StringBuilder sb, JsonStringEncoder encoder) {
+            sb.append("{\"timestamp\":").append(timestamp);
+            sb.append(",\"method\":");
+            string(sb, encoder, method);
+            sb.append(",\"uri\":");
+            string(sb, encoder, uri);
+            sb.append(",\"transport\":");
+            string(sb, encoder, transport);
+            sb.append(",\"session\":");
+            string(sb, encoder, sessionId);
+            sb.append(",\"status\":").append(status);
+            sb.append(",\"bytes\":").append(bytes);
+            sb.append(",\"duration\":").append(duration);
+            sb.append("}\n");
+        }
+
+        private static void string(StringBuilder sb, JsonStringEncoder encoder, String value) {
+            if (value == null) {
+                sb.append("null");
+            } else {
+                sb.append('"').append(encoder.quoteAsString(value)).append('"');
+            }
+        }
+    }
+}
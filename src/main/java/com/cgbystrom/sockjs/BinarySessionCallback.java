@@ -0,0 +1,10 @@
+package com.cgbystrom.sockjs;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+
+/**
+ * Session callback that also accepts the binary frames raw WebSocket clients can send.
+ */
+public interface BinarySessionCallback extends SessionCallback {
+    public void onMessage(ChannelBuffer message) throws Exception;
+}
@@ -0,0 +1,100 @@
+package com.cgbystrom.sockjs;
+
+import com.codahale.metrics.Counter;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.Timer;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * Timer keeping count of the timeouts that are scheduled but neither expired nor cancelled yet,
+ * which HashedWheelTimer does not tell. A backlog growing over time means timeouts are left behind.
+ */
+public class CountingTimer implements Timer {
+    private final Timer timer;
+    private final Counter pending = new Counter();
+
+    public CountingTimer(Timer timer) {
+        this.timer = timer;
+    }
+
+    /** @return Timeouts scheduled that have neither expired nor been cancelled */
+    public long getPending() {
+        return pending.getCount();
+    }
+
+    @Override
+    public Timeout newTimeout(TimerTask task, long delay, TimeUnit unit) {
+        final CountedTimeout timeout = new CountedTimeout(this, task);
+        pending.inc();
+        timeout.timeout = timer.newTimeout(timeout, delay, unit);
+        return timeout;
+    }
+
+    @Override
+    public Set<Timeout> stop() {
+        final Set<Timeout> unexpired = new HashSet<Timeout>();
+        for (Timeout timeout : timer.stop()) {
+            unexpired.add((CountedTimeout) timeout.getTask());
+        }
+        return unexpired;
+    }
+
+    private static class CountedTimeout implements Timeout, TimerTask {
+        private static final AtomicIntegerFieldUpdater<CountedTimeout> DONE =
+                AtomicIntegerFieldUpdater.newUpdater(CountedTimeout.class, "done");
+
+        private final CountingTimer timer;
+        private final TimerTask task;
+        private volatile Timeout timeout;
+        private volatile int done;
+
+        CountedTimeout(CountingTimer timer, TimerTask task) {
+            this.timer = timer;
+            this.task = task;
+        }
+
+        /** Leaves the count once, whether it expires or is cancelled first */
+        private void done() {
+            if (DONE.compareAndSet(this, 0, 1)) {
+                timer.pending.dec();
+            }
+        }
+
+        @Override
+        public void run(Timeout timeout) throws Exception {
+            done();
+            task.run(this);
+        }
+
+        @Override
+        public Timer getTimer() {
+            return timer;
+        }
+
+        @Override
+        public TimerTask getTask() {
+            return task;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return timeout.isExpired();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return timeout.isCancelled();
+        }
+
+        @Override
+        public void cancel() {
+            done();
+            timeout.cancel();
+        }
+    }
+}
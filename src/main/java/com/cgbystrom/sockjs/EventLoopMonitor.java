@@ -0,0 +1,248 @@
+package com.cgbystrom.sockjs;
+
+import com.cgbystrom.sockjs.transports.HdrReservoir;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches the I/O workers of the router for being kept busy, by a session callback or a burst of writes,
+ * which every other connection of that worker has to wait for.
+ *
+ * Once per probe interval a no-op task is put in the task queue of each worker, through the last
+ * connection it got, and the time until it runs is its lag. The time spent in session callbacks is
+ * counted by the worker running them. Both are histograms of microseconds per worker, named after
+ * the order the workers got their first connection in.
+ *
+ * The listener is called on the router timer, so a worker stuck for good is reported as well.
+ */
+public class EventLoopMonitor implements TimerTask {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(EventLoopMonitor.class);
+
+    /** Called on the router timer thread, should return quickly */
+    public interface Listener {
+        /** @param lag Microseconds the probe waited for the worker, or has been waiting if it is still stuck */
+        void lagExceeded(Thread worker, long lag);
+
+        /** @param callbackTime Microseconds of the longest callback above the threshold since the last probe */
+        void callbackTimeExceeded(Thread worker, long callbackTime);
+    }
+
+    private final ServiceRouter router;
+    private final List<Worker> workers = new CopyOnWriteArrayList<Worker>();
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<Worker>();
+    private final AtomicBoolean isStarted = new AtomicBoolean();
+    private volatile int probeInterval = 1000; // milliseconds
+    private volatile long lagThreshold = 100 * 1000; // microseconds
+    private volatile long callbackTimeThreshold = 100 * 1000; // microseconds
+    private volatile Listener listener;
+
+    EventLoopMonitor(ServiceRouter router) {
+        this.router = router;
+    }
+
+    public int getProbeInterval() {
+        return probeInterval;
+    }
+
+    /**
+     * @param probeInterval Milliseconds between probes of each worker, zero or less stops probing
+     */
+    public void setProbeInterval(int probeInterval) {
+        this.probeInterval = probeInterval;
+    }
+
+    public int getLagThreshold() {
+        return (int) TimeUnit.MICROSECONDS.toMillis(lagThreshold);
+    }
+
+    /**
+     * @param lagThreshold Milliseconds of lag reported to the listener
+     */
+    public void setLagThreshold(int lagThreshold) {
+        this.lagThreshold = TimeUnit.MILLISECONDS.toMicros(lagThreshold);
+    }
+
+    public int getCallbackTimeThreshold() {
+        return (int) TimeUnit.MICROSECONDS.toMillis(callbackTimeThreshold);
+    }
+
+    /**
+     * @param callbackTimeThreshold Milliseconds in a single session callback reported to the listener
+     */
+    public void setCallbackTimeThreshold(int callbackTimeThreshold) {
+        this.callbackTimeThreshold = TimeUnit.MILLISECONDS.toMicros(callbackTimeThreshold);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /** @return Lag of the last probe of each worker in microseconds, by worker thread name */
+    public List<WorkerLag> getLags() {
+        final List<WorkerLag> lags = new ArrayList<WorkerLag>(workers.size());
+        for (Worker worker : workers) {
+            lags.add(new WorkerLag(worker.thread.getName(), worker.getLag()));
+        }
+        return lags;
+    }
+
+    /** A connection of the current thread, an I/O worker, that probes can be sent through */
+    void channelConnected(Channel channel) {
+        Worker worker = currentWorker.get();
+        if (worker == null) {
+            final MetricRegistry registry = router.getMetricRegistry();
+            synchronized (this) {
+                worker = new Worker(registry, "worker" + workers.size());
+                workers.add(worker);
+            }
+            currentWorker.set(worker);
+            if (isStarted.compareAndSet(false, true)) {
+                schedule();
+            }
+        }
+        worker.channel = channel;
+    }
+
+    /** @param nanos Time the current thread just spent in a session callback */
+    void callbackTime(long nanos) {
+        final Worker worker = currentWorker.get();
+        if (worker == null) {
+            // Called by the timer, closing a session that timed out
+            return;
+        }
+        final long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        worker.callbackTime.update(micros);
+        if (micros > callbackTimeThreshold) {
+            long current;
+            while (micros > (current = worker.callbackTimeExceeded.get()) &&
+                    !worker.callbackTimeExceeded.compareAndSet(current, micros)) {
+                // Retry, only happens while another callback is over the threshold too
+            }
+        }
+    }
+
+    private void schedule() {
+        if (probeInterval > 0) {
+            router.getTimer().newTimeout(this, probeInterval, TimeUnit.MILLISECONDS);
+        } else {
+            isStarted.set(false);
+        }
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        final Listener listener = this.listener;
+        for (Worker worker : workers) {
+            if (!worker.thread.isAlive()) {
+                workers.remove(worker);
+                continue;
+            }
+
+            final long lag = worker.getLag();
+            final long callbackTimeExceeded = worker.callbackTimeExceeded.getAndSet(0);
+            if (listener != null) {
+                try {
+                    if (lag > lagThreshold && worker.lagReported != worker.probedAt) {
+                        worker.lagReported = worker.probedAt;
+                        listener.lagExceeded(worker.thread, lag);
+                    }
+                    if (callbackTimeExceeded > 0) {
+                        listener.callbackTimeExceeded(worker.thread, callbackTimeExceeded);
+                    }
+                } catch (Exception e) {
+                    logger.warn("Event loop listener failed", e);
+                }
+            }
+
+            if (!worker.isProbing) {
+                worker.probe();
+            }
+        }
+        schedule();
+    }
+
+    private static class Worker implements Runnable, ChannelFutureListener {
+        final Thread thread = Thread.currentThread();
+        final Histogram lag;
+        final Histogram callbackTime;
+        final AtomicLong callbackTimeExceeded = new AtomicLong();
+        /** Last connection of the worker, probes are executed in its pipeline */
+        volatile Channel channel;
+        volatile boolean isProbing;
+        /** System.nanoTime() the current or last probe was sent at */
+        volatile long probedAt;
+        volatile long lastLag;
+        /** Only touched by the timer, the probe last reported so a stuck worker is reported once */
+        long lagReported;
+
+        Worker(MetricRegistry registry, String name) {
+            lag = HdrReservoir.histogram(registry, MetricRegistry.name(EventLoopMonitor.class, name, "lag"));
+            callbackTime = HdrReservoir.histogram(registry, MetricRegistry.name(EventLoopMonitor.class, name, "callbackTime"));
+        }
+
+        /** @return Microseconds the last probe took to run, or has waited so far if it has not yet */
+        long getLag() {
+            return isProbing ? TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - probedAt) : lastLag;
+        }
+
+        void probe() {
+            final Channel channel = this.channel;
+            if (channel == null || !channel.isOpen()) {
+                // Probed again once the worker gets another connection
+                this.channel = null;
+                return;
+            }
+            isProbing = true;
+            probedAt = System.nanoTime();
+            channel.getPipeline().execute(this).addListener(this);
+        }
+
+        @Override
+        public void run() {
+            lastLag = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - probedAt);
+            lag.update(lastLag);
+            isProbing = false;
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            if (!future.isSuccess()) {
+                // Not run, the channel was closed before the task was
+                isProbing = false;
+            }
+        }
+    }
+
+    public static class WorkerLag {
+        private final String worker;
+        private final long lag;
+
+        private WorkerLag(String worker, long lag) {
+            this.worker = worker;
+            this.lag = lag;
+        }
+
+        public String getWorker() {
+            return worker;
+        }
+
+        /** @return Microseconds */
+        public long getLag() {
+            return lag;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * Receives events of sessions, frames, handshakes and requests as they happen, to pass them on to
+ * a profiler such as Java Flight Recorder so they line up with GC pauses and the rest of a recording.
+ *
+ * There is one recorder per JVM, named by the sockjs.eventRecorder system property, see Events.
+ * It is called on the I/O workers and the timer, and should not block. Durations are in nanoseconds.
+ */
+public interface EventRecorder {
+    void sessionCreated(String sessionId);
+
+    /** Open, interrupted or closed, after the session has changed to it */
+    void sessionStateChanged(String sessionId, SessionHandler.State from, SessionHandler.State to);
+
+    /** A message frame encoded for the HTTP transports and SockJS WebSockets */
+    void frameEncoded(int messages, int bytes, long duration);
+
+    /** @param duration From the upgrade request to the handshake response written, or failing to */
+    void webSocketHandshake(String transport, boolean isSuccess, long duration);
+
+    /** @param duration Time ServiceRouter took routing the request, including the transport handling it */
+    void requestDispatched(String uri, long duration);
+}
@@ -0,0 +1,37 @@
+package com.cgbystrom.sockjs;
+
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+
+/**
+ * The EventRecorder of the JVM, set by naming a class with a public no-argument constructor in the
+ * sockjs.eventRecorder system property, for example -Dsockjs.eventRecorder=com.example.JfrRecorder.
+ *
+ * Both fields are final, so once compiled, the places recording events cost nothing when there is no
+ * recorder. Java 6, which this library targets, has no Flight Recorder API of its own, a recorder
+ * creating and committing jdk.jfr events is left to applications on a JVM that has one.
+ */
+public final class Events {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(Events.class);
+    public static final String RECORDER_PROPERTY = "sockjs.eventRecorder";
+
+    public static final EventRecorder RECORDER = createRecorder();
+    /** Check this before taking the time or anything else only needed for an event */
+    public static final boolean ENABLED = RECORDER != null;
+
+    private Events() {
+    }
+
+    private static EventRecorder createRecorder() {
+        final String className = System.getProperty(RECORDER_PROPERTY);
+        if (className == null || className.isEmpty()) {
+            return null;
+        }
+        try {
+            return (EventRecorder) Class.forName(className).newInstance();
+        } catch (Exception e) {
+            logger.warn("Unable to create event recorder " + className + ", not recording events", e);
+            return null;
+        }
+    }
+}
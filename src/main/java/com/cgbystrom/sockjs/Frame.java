@@ -23,6 +23,10 @@ public abstract class Frame {
         return data;
     }
 
+    /** Marks the stage as passed on the traces of the sampled messages in the frame, if it has any */
+    public void traceStage(MessageTrace.Stage stage) {
+    }
+
     public static OpenFrame openFrame() {
         return OPEN_FRAME_OBJ;
     }
@@ -157,10 +161,55 @@ public abstract class Frame {
 
     public static class MessageFrame extends Frame {
         private SockJsMessage[] messages;
+        /** Set by sessions on frames sent over EventSource, zero otherwise */
+        private long eventId;
+        /** Whether any of the messages carries a trace */
+        private boolean isTraced;
 
         private MessageFrame(SockJsMessage... messages) {
             this.messages = messages;
-            data = ChannelBuffers.dynamicBuffer();
+        }
+
+        public long getEventId() {
+            return eventId;
+        }
+
+        void setEventId(long eventId) {
+            this.eventId = eventId;
+        }
+
+        void setTraced() {
+            isTraced = true;
+        }
+
+        @Override
+        public void traceStage(MessageTrace.Stage stage) {
+            if (!isTraced) {
+                return;
+            }
+            for (SockJsMessage message : messages) {
+                if (message.trace != null) {
+                    message.trace.stamp(stage);
+                }
+            }
+        }
+
+        /** Encoded on first use, as raw WebSockets send the messages as they are */
+        @Override
+        public ChannelBuffer getData() {
+            if (data == null) {
+                final long start = Events.ENABLED ? System.nanoTime() : 0;
+                data = encode(messages);
+                traceStage(MessageTrace.Stage.ENCODED);
+                if (Events.ENABLED) {
+                    Events.RECORDER.frameEncoded(messages.length, data.readableBytes(), System.nanoTime() - start);
+                }
+            }
+            return data;
+        }
+
+        private static ChannelBuffer encode(SockJsMessage[] messages) {
+            ChannelBuffer data = ChannelBuffers.dynamicBuffer();
             data.writeByte('a');
             data.writeByte('[');
             for (int i = 0; i < messages.length; i++) {
@@ -175,6 +224,7 @@ public abstract class Frame {
             }
 
             data.writeByte(']');
+            return data;
         }
 
         public SockJsMessage[] getMessages() {
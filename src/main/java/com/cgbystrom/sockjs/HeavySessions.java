@@ -0,0 +1,139 @@
+package com.cgbystrom.sockjs;
+
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report of the sessions of a service that moved the most bytes, in and out, during the last interval.
+ *
+ * Sessions only bump their own counters as messages pass. Once per interval the sessions are looked
+ * through in a single pass, keeping the heaviest ones in a min-heap bounded to the size of the report,
+ * so it never holds more than that many entries.
+ */
+public class HeavySessions implements TimerTask {
+    private static final Comparator<SessionTraffic> BY_INTERVAL_BYTES = new Comparator<SessionTraffic>() {
+        @Override
+        public int compare(SessionTraffic a, SessionTraffic b) {
+            return a.intervalBytes < b.intervalBytes ? -1 : a.intervalBytes == b.intervalBytes ? 0 : 1;
+        }
+    };
+
+    private final Service service;
+    private final Collection<SessionHandler> sessions;
+    private volatile List<SessionTraffic> heaviest = Collections.emptyList();
+
+    HeavySessions(Service service, Collection<SessionHandler> sessions) {
+        this.service = service;
+        this.sessions = sessions;
+    }
+
+    void start() {
+        service.getTimer().newTimeout(this, service.getHeavySessionsInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Heaviest sessions of the last complete interval, heaviest first
+     */
+    public List<SessionTraffic> getHeaviest() {
+        return heaviest;
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        final int size = service.getHeavySessionsCount();
+        final PriorityQueue<SessionTraffic> heap = new PriorityQueue<SessionTraffic>(Math.max(1, size), BY_INTERVAL_BYTES);
+        for (SessionHandler session : sessions) {
+            final long intervalBytes = session.startTrafficInterval();
+            if (intervalBytes == 0 || size <= 0) {
+                continue;
+            }
+            if (heap.size() < size) {
+                heap.add(new SessionTraffic(session, intervalBytes));
+            } else if (intervalBytes > heap.peek().intervalBytes) {
+                heap.poll();
+                heap.add(new SessionTraffic(session, intervalBytes));
+            }
+        }
+
+        final List<SessionTraffic> report = new ArrayList<SessionTraffic>(heap);
+        Collections.sort(report, Collections.reverseOrder(BY_INTERVAL_BYTES));
+        heaviest = Collections.unmodifiableList(report);
+
+        start();
+    }
+
+    /** Traffic of a session as it was at the end of an interval */
+    public static class SessionTraffic {
+        private final String id;
+        private final long intervalBytes;
+        private final long bytesReceived;
+        private final long messagesReceived;
+        private final long bytesSent;
+        private final long messagesSent;
+        private final int reconnects;
+        private final long lastActivity;
+
+        private SessionTraffic(SessionHandler session, long intervalBytes) {
+            this.id = session.getId();
+            this.intervalBytes = intervalBytes;
+            this.bytesReceived = session.getBytesReceived();
+            this.messagesReceived = session.getMessagesReceived();
+            this.bytesSent = session.getBytesSent();
+            this.messagesSent = session.getMessagesSent();
+            this.reconnects = session.getReconnects();
+            this.lastActivity = session.getLastActivity();
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        /** @return Bytes received and sent during the interval */
+        public long getIntervalBytes() {
+            return intervalBytes;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        public long getMessagesReceived() {
+            return messagesReceived;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getMessagesSent() {
+            return messagesSent;
+        }
+
+        public int getReconnects() {
+            return reconnects;
+        }
+
+        public long getLastActivity() {
+            return lastActivity;
+        }
+
+        @Override
+        public String toString() {
+            return "SessionTraffic{" +
+                    "id='" + id + '\'' +
+                    ", intervalBytes=" + intervalBytes +
+                    ", bytesReceived=" + bytesReceived +
+                    ", bytesSent=" + bytesSent +
+                    ", reconnects=" + reconnects +
+                    '}';
+        }
+    }
+}
@@ -28,8 +28,6 @@ public class IframePage {
             return;
         }
 
-        response.setHeader(HttpHeaders.Names.SET_COOKIE, "JSESSIONID=dummy; path=/");
-
         if (request.containsHeader(HttpHeaders.Names.IF_NONE_MATCH)) {
             response.setStatus(HttpResponseStatus.NOT_MODIFIED);
             response.removeHeader(HttpHeaders.Names.CONTENT_TYPE);
@@ -37,7 +35,6 @@ public class IframePage {
             response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/html; charset=UTF-8");
             response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=31536000, public");
             response.setHeader(HttpHeaders.Names.EXPIRES, "FIXME"); // FIXME: Fix this
-            response.removeHeader(HttpHeaders.Names.SET_COOKIE);
             response.setContent(content);
         }
 
@@ -0,0 +1,93 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * Times at which a message sampled for tracing passed each stage on its way in or out, taken with
+ * System.nanoTime(). Handed to the TraceSink of the service once the message is through, with the
+ * stages it did not reach at zero.
+ */
+public class MessageTrace {
+    public enum Stage {
+        /** The HTTP request or WebSocket frame reached the transport, decoded and routed */
+        RECEIVED(true),
+        /** Parsed into SockJS messages by the transport */
+        DECODED(true),
+        /** Reached the session */
+        DELIVERED(true),
+        /** The SessionCallback returned */
+        CALLBACK_RETURNED(true),
+        /** Session.send() */
+        SENT(false),
+        /** Taken from the queue of the session, or written straight away, in a frame */
+        FLUSHED(false),
+        /** The message frame was encoded */
+        ENCODED(false),
+        /** The transport wrapped the frame for its connection and passed it on */
+        WRAPPED(false),
+        /** Written to the socket */
+        WRITTEN(false);
+
+        private final boolean isInbound;
+
+        Stage(boolean isInbound) {
+            this.isInbound = isInbound;
+        }
+
+        public boolean isInbound() {
+            return isInbound;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final boolean isInbound;
+    private final long[] times = new long[STAGES.length];
+    private String sessionId;
+
+    MessageTrace(boolean isInbound) {
+        this.isInbound = isInbound;
+    }
+
+    void stamp(Stage stage) {
+        times[stage.ordinal()] = System.nanoTime();
+    }
+
+    void stamp(Stage stage, long time) {
+        times[stage.ordinal()] = time;
+    }
+
+    void setSessionId(String sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public boolean isInbound() {
+        return isInbound;
+    }
+
+    /** @return System.nanoTime() the message reached the stage, zero if it did not */
+    public long getTime(Stage stage) {
+        return times[stage.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("MessageTrace{session=").append(sessionId);
+        sb.append(isInbound ? ", inbound" : ", outbound");
+        long previous = 0;
+        for (Stage stage : STAGES) {
+            final long time = times[stage.ordinal()];
+            if (stage.isInbound != isInbound || time == 0) {
+                continue;
+            }
+            sb.append(", ").append(stage);
+            if (previous != 0) {
+                sb.append(" +").append((time - previous) / 1000).append("us");
+            }
+            previous = time;
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -1,41 +1,66 @@
 package com.cgbystrom.sockjs;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.util.CharsetUtil;
 
+import java.text.SimpleDateFormat;
+import java.util.*;
+
+/**
+ * Answers CORS preflight (OPTIONS) requests and adds CORS headers to all other responses.
+ *
+ * A single instance can be shared by all pipelines. Preflight responses are pre-encoded once per
+ * HTTP version and allowed methods, leaving only the origin and requested headers to be filled in.
+ * The origin of the request currently being served is kept as the context attachment.
+ */
+@ChannelHandler.Sharable
 public class PreflightHandler extends SimpleChannelHandler {
-    private String origin = null;
-    private String corsHeaders = null;
+    private static final String ALLOW_ORIGIN = "Access-Control-Allow-Origin";
+    private static final String ALLOW_CREDENTIALS = "Access-Control-Allow-Credentials";
+    private static final String ALLOW_HEADERS = "Access-Control-Allow-Headers";
+    private static final String REQUEST_HEADERS = "Access-Control-Request-Headers";
+    private static final int MAX_AGE = 365 * 24 * 60 * 60; // seconds
+    /** Rebuild the pre-encoded responses now and then to keep their Expires header a year ahead */
+    private static final long REBUILD_INTERVAL = 24 * 60 * 60 * 1000L; // milliseconds
+
+    private static final ChannelBuffer ALLOW_ORIGIN_ANY = header(ALLOW_ORIGIN, "*");
+    private static final ChannelBuffer ALLOW_ORIGIN_PREFIX = ChannelBuffers.copiedBuffer(ALLOW_ORIGIN + ": ", CharsetUtil.US_ASCII);
+    private static final ChannelBuffer ALLOW_HEADERS_DEFAULT = header(ALLOW_HEADERS, "Content-Type");
+    private static final ChannelBuffer ALLOW_HEADERS_PREFIX = ChannelBuffers.copiedBuffer(ALLOW_HEADERS + ": ", CharsetUtil.US_ASCII);
+    private static final ChannelBuffer CONNECTION_CLOSE = header(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
+    private static final ChannelBuffer CRLF = ChannelBuffers.copiedBuffer("\r\n", CharsetUtil.US_ASCII);
+
+    /** Attached in place of an origin that is not on the allowlist */
+    private static final Object DENIED_ORIGIN = new Object();
+
+    private final Set<String> allowedOrigins;
+    private volatile PreflightResponses responses = new PreflightResponses();
+
+    /** Allow requests from any origin */
+    public PreflightHandler() {
+        this.allowedOrigins = null;
+    }
+
+    /**
+     * @param allowedOrigins Origins (e.g. "https://example.com") allowed to make cross domain requests.
+     *                       Other origins never have their origin echoed back.
+     */
+    public PreflightHandler(String... allowedOrigins) {
+        this.allowedOrigins = new HashSet<String>(Arrays.asList(allowedOrigins));
+    }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         if (e.getMessage() instanceof HttpRequest) {
             HttpRequest request = (HttpRequest)e.getMessage();
-
-            String originHeader = request.getHeader("Origin");
-            if (originHeader != null)
-                origin = originHeader;
-
-            corsHeaders = request.getHeader("Access-Control-Request-Headers");
+            Object origin = checkOrigin(request.getHeader(HttpHeaders.Names.ORIGIN));
+            ctx.setAttachment(origin);
 
             if (request.getMethod().equals(HttpMethod.OPTIONS)) {
-                HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.NO_CONTENT);
-                response.setHeader(HttpHeaders.Names.CONTENT_TYPE, "text/plain; charset=UTF-8");
-                response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "max-age=31536000, public");
-                response.setHeader("Access-Control-Max-Age", "31536000");
-
-                // FIXME: Dirty, handle per transport?
-                if (request.getUri().contains("/xhr")) {
-                    response.setHeader("Access-Control-Allow-Methods", "OPTIONS, POST");
-                } else {
-                    response.setHeader("Access-Control-Allow-Methods", "OPTIONS, GET");
-                }
-
-                response.setHeader("Access-Control-Allow-Headers", "Content-Type");
-                response.setHeader("Access-Control-Allow-Credentials", "true");
-                response.setHeader(HttpHeaders.Names.EXPIRES, "FIXME"); // FIXME: Fix this
-                response.setHeader(HttpHeaders.Names.SET_COOKIE, "JSESSIONID=dummy; path=/");
-                ctx.getChannel().write(response).addListener(ChannelFutureListener.CLOSE);
+                writePreflightResponse(ctx, request, origin);
                 return;
             }
         }
@@ -46,13 +71,104 @@ public class PreflightHandler extends SimpleChannelHandler {
     public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         if (e.getMessage() instanceof HttpResponse) {
             HttpResponse response = (HttpResponse)e.getMessage();
-            response.setHeader("Access-Control-Allow-Origin", origin == null || "null".equals(origin) ? "*" : origin);
-            response.setHeader("Access-Control-Allow-Credentials", "true");
-
-            if (corsHeaders != null) {
-                response.setHeader("Access-Control-Allow-Headers", corsHeaders);
+            Object origin = ctx.getAttachment();
+            if (origin == DENIED_ORIGIN) {
+                response.removeHeader(ALLOW_ORIGIN);
+                response.removeHeader(ALLOW_CREDENTIALS);
+            } else {
+                response.setHeader(ALLOW_ORIGIN, origin == null ? "*" : origin);
+                response.setHeader(ALLOW_CREDENTIALS, "true");
             }
         }
         super.writeRequested(ctx, e);
     }
+
+    /**
+     * @return The origin to echo back, null if any origin may be assumed or DENIED_ORIGIN
+     */
+    private Object checkOrigin(String origin) {
+        if (origin == null || "null".equals(origin)) {
+            return null;
+        }
+        if (allowedOrigins != null && !allowedOrigins.contains(origin)) {
+            return DENIED_ORIGIN;
+        }
+        return origin;
+    }
+
+    private void writePreflightResponse(ChannelHandlerContext ctx, HttpRequest request, Object origin) {
+        PreflightResponses r = responses;
+        if (System.currentTimeMillis() - r.created > REBUILD_INTERVAL) {
+            r = responses = new PreflightResponses();
+        }
+
+        final boolean isHttp11 = request.getProtocolVersion().equals(HttpVersion.HTTP_1_1);
+        final boolean isPost = isXhrPath(request.getUri());
+        final boolean keepAlive = isHttp11 && HttpHeaders.isKeepAlive(request);
+        final ChannelBuffer head = isHttp11 ? (isPost ? r.postHttp11 : r.getHttp11) : (isPost ? r.postHttp10 : r.getHttp10);
+
+        final ChannelBuffer allowOrigin;
+        if (origin == null) {
+            allowOrigin = ALLOW_ORIGIN_ANY;
+        } else if (origin == DENIED_ORIGIN) {
+            allowOrigin = ChannelBuffers.EMPTY_BUFFER;
+        } else {
+            allowOrigin = ChannelBuffers.wrappedBuffer(ALLOW_ORIGIN_PREFIX,
+                    ChannelBuffers.copiedBuffer((String) origin, CharsetUtil.UTF_8), CRLF);
+        }
+
+        final String requestHeaders = request.getHeader(REQUEST_HEADERS);
+        final ChannelBuffer allowHeaders = requestHeaders == null ? ALLOW_HEADERS_DEFAULT :
+                ChannelBuffers.wrappedBuffer(ALLOW_HEADERS_PREFIX,
+                        ChannelBuffers.copiedBuffer(requestHeaders, CharsetUtil.UTF_8), CRLF);
+
+        ChannelBuffer encoded = ChannelBuffers.wrappedBuffer(head, allowOrigin, allowHeaders,
+                keepAlive ? ChannelBuffers.EMPTY_BUFFER : CONNECTION_CLOSE, CRLF);
+
+        // Already encoded, so the HTTP encoder will pass it straight through.
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(), future, encoded, null));
+    }
+
+    /** xhr, xhr_send and xhr_streaming are POSTed to, everything else is fetched with GET */
+    private static boolean isXhrPath(String uri) {
+        int end = uri.indexOf('?');
+        if (end < 0) {
+            end = uri.length();
+        }
+        int start = uri.lastIndexOf('/', end - 1) + 1;
+        return uri.regionMatches(start, "xhr", 0, 3);
+    }
+
+    private static ChannelBuffer header(String name, String value) {
+        return ChannelBuffers.copiedBuffer(name + ": " + value + "\r\n", CharsetUtil.US_ASCII);
+    }
+
+    /** Pre-encoded status line and fixed headers of every preflight response variant */
+    private static class PreflightResponses {
+        final long created = System.currentTimeMillis();
+        final ChannelBuffer postHttp11 = encode(HttpVersion.HTTP_1_1, "OPTIONS, POST");
+        final ChannelBuffer getHttp11 = encode(HttpVersion.HTTP_1_1, "OPTIONS, GET");
+        final ChannelBuffer postHttp10 = encode(HttpVersion.HTTP_1_0, "OPTIONS, POST");
+        final ChannelBuffer getHttp10 = encode(HttpVersion.HTTP_1_0, "OPTIONS, GET");
+
+        private ChannelBuffer encode(HttpVersion version, String allowedMethods) {
+            SimpleDateFormat dateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.ENGLISH);
+            dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+            String expires = dateFormat.format(new Date(created + MAX_AGE * 1000L));
+
+            StringBuilder sb = new StringBuilder(512);
+            sb.append(version).append(' ').append(HttpResponseStatus.NO_CONTENT).append("\r\n");
+            sb.append(HttpHeaders.Names.CONTENT_TYPE).append(": text/plain; charset=UTF-8\r\n");
+            sb.append(HttpHeaders.Names.CACHE_CONTROL).append(": max-age=").append(MAX_AGE).append(", public\r\n");
+            sb.append(HttpHeaders.Names.EXPIRES).append(": ").append(expires).append("\r\n");
+            sb.append("Access-Control-Max-Age: ").append(MAX_AGE).append("\r\n");
+            sb.append("Access-Control-Allow-Methods: ").append(allowedMethods).append("\r\n");
+            sb.append(ALLOW_CREDENTIALS).append(": true\r\n");
+            return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.copiedBuffer(sb.toString(), CharsetUtil.US_ASCII));
+        }
+    }
 }
@@ -1,10 +1,16 @@
 package com.cgbystrom.sockjs;
 
 import com.cgbystrom.sockjs.transports.*;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 import org.jboss.netty.util.Timer;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.cgbystrom.sockjs.SessionHandler.NotFoundException;
 
@@ -14,11 +20,45 @@ public class Service {
     private ConcurrentHashMap<String, SessionHandler> sessions = new ConcurrentHashMap<String, SessionHandler>();
     private boolean isWebSocketEnabled = true;
     private int maxResponseSize = 128 * 1024;
+    /** One in this many messages sent has its send latency recorded */
+    private int sendLatencySampleInterval = 64;
+    /** One in this many messages received and sent is traced through the pipeline, none if zero */
+    private volatile int traceSampleInterval = 0;
+    private final AtomicLong messagesUntilTrace = new AtomicLong();
+    private TraceSink traceSink;
+    /** Largest max response size a session can grow to by reaching it over and over */
+    private int maxResponseSizeCeiling = 1024 * 1024; // bytes
+    /** Largest message accepted from a WebSocket client, in one frame or reassembled from several */
+    private int maxWebSocketMessageSize = 128 * 1024; // bytes
+    private String webSocketSubprotocols = null;
     private boolean cookieNeeded = false;
     private Timer timer;
+    private EventLoopMonitor eventLoopMonitor;
     /** Timeout for when to kill sessions that have not received a connection */
     private int sessionTimeout = 5; // seconds
     private int heartbeatInterval = 25 * 1000; // milliseconds
+    /** Unanswered WebSocket pings, one per heartbeat interval, before the connection is closed */
+    private int maxMissedPongs = 2;
+    /** Max time a poll is held open without messages before it is answered with a heartbeat */
+    private int pollHoldTimeout = 25 * 1000; // milliseconds
+    /** Time a poll waits for more messages after the first one arrives */
+    private int pollCoalesceDelay = 0; // milliseconds
+    /** Message frames an EventSource session keeps for a client resuming with Last-Event-ID */
+    private int eventSourceReplaySize = 0;
+    private boolean streamingCompressionEnabled = false;
+    private boolean webSocketCompressionEnabled = false;
+    private boolean webSocketCompressionContextTakeover = false;
+    private int webSocketCompressionWindowBits = 15;
+    private int webSocketCompressionMinSize = 256; // bytes
+    private int webSocketCompressionMaxMemory = 0; // bytes
+    /** Length of the intervals the heaviest sessions are reported for */
+    private int heavySessionsInterval = 60 * 1000; // milliseconds
+    private int heavySessionsCount = 10;
+    private HeavySessions heavySessions;
+    private PerMessageDeflate perMessageDeflate;
+    private WebSocketHandshakers webSocketHandshakers;
+    private WebSocketHeartbeat webSocketHeartbeat;
+    private IdlePolicies idlePolicies;
     private MetricRegistry metricRegistry;
     private Metrics metrics;
 
@@ -49,6 +89,30 @@ public class Service {
         return this;
     }
 
+    public int getMaxWebSocketMessageSize() {
+        return maxWebSocketMessageSize;
+    }
+
+    /**
+     * @param maxWebSocketMessageSize Bytes a message from a WebSocket client may have, counted after
+     *                                decompression. Larger messages close the connection with 1009.
+     */
+    public void setMaxWebSocketMessageSize(int maxWebSocketMessageSize) {
+        this.maxWebSocketMessageSize = maxWebSocketMessageSize;
+    }
+
+    public String getWebSocketSubprotocols() {
+        return webSocketSubprotocols;
+    }
+
+    /**
+     * @param webSocketSubprotocols Comma separated subprotocols a WebSocket client may ask for, null for none.
+     *                              Clients asking only for others are refused.
+     */
+    public void setWebSocketSubprotocols(String webSocketSubprotocols) {
+        this.webSocketSubprotocols = webSocketSubprotocols;
+    }
+
     public int getMaxResponseSize() {
         return maxResponseSize;
     }
@@ -58,6 +122,71 @@ public class Service {
         return this;
     }
 
+    public int getMaxResponseSizeCeiling() {
+        return maxResponseSizeCeiling;
+    }
+
+    /**
+     * @param maxResponseSizeCeiling Bytes the max response size of a session may grow to. Every streaming
+     *                               response closed for reaching the max doubles it for the next response
+     *                               of that session. At or below the max response size, it never grows.
+     */
+    public Service setMaxResponseSizeCeiling(int maxResponseSizeCeiling) {
+        this.maxResponseSizeCeiling = maxResponseSizeCeiling;
+        return this;
+    }
+
+    public int getSendLatencySampleInterval() {
+        return sendLatencySampleInterval;
+    }
+
+    /**
+     * @param sendLatencySampleInterval Record the time from Session.send() until the message is written for one
+     *                                  in this many messages. One records every message, zero or less none.
+     *                                  Applies to sessions created after it is set.
+     */
+    public void setSendLatencySampleInterval(int sendLatencySampleInterval) {
+        this.sendLatencySampleInterval = sendLatencySampleInterval;
+    }
+
+    public int getTraceSampleInterval() {
+        return traceSampleInterval;
+    }
+
+    /**
+     * @param traceSampleInterval Trace one in this many messages through the stages of the pipeline, see
+     *                            MessageTrace. Zero or less, the default, traces none.
+     */
+    public void setTraceSampleInterval(int traceSampleInterval) {
+        this.traceSampleInterval = traceSampleInterval;
+    }
+
+    /** @return Sink of the traces, a TraceRing keeping the last 1024 unless another one is set */
+    public synchronized TraceSink getTraceSink() {
+        if (traceSink == null) {
+            traceSink = new TraceRing(1024);
+        }
+        return traceSink;
+    }
+
+    public synchronized void setTraceSink(TraceSink traceSink) {
+        this.traceSink = traceSink;
+    }
+
+    /**
+     * Called by transports for every message they decode, while tracing
+     *
+     * @param receivedAt System.nanoTime() the request or frame carrying the message reached the transport
+     */
+    public void traceReceived(SockJsMessage message, long receivedAt) {
+        final int interval = traceSampleInterval;
+        if (interval > 0 && messagesUntilTrace.incrementAndGet() % interval == 0) {
+            message.trace = new MessageTrace(true);
+            message.trace.stamp(MessageTrace.Stage.RECEIVED, receivedAt);
+            message.trace.stamp(MessageTrace.Stage.DECODED);
+        }
+    }
+
     public boolean isCookieNeeded() {
         return cookieNeeded;
     }
@@ -75,6 +204,18 @@ public class Service {
         this.timer = timer;
     }
 
+    public EventLoopMonitor getEventLoopMonitor() {
+        return eventLoopMonitor;
+    }
+
+    /**
+     * @param eventLoopMonitor Monitor the session callbacks are timed for, set to the one of the router
+     *                         when registered without one
+     */
+    public void setEventLoopMonitor(EventLoopMonitor eventLoopMonitor) {
+        this.eventLoopMonitor = eventLoopMonitor;
+    }
+
     public int getSessionTimeout() {
         return sessionTimeout;
     }
@@ -91,6 +232,194 @@ public class Service {
         this.heartbeatInterval = heartbeatInterval;
     }
 
+    public int getMaxMissedPongs() {
+        return maxMissedPongs;
+    }
+
+    /**
+     * @param maxMissedPongs Pings in a row a WebSocket client may leave unanswered before its connection
+     *                       is closed as dead. Zero or less keeps pinging without closing.
+     */
+    public void setMaxMissedPongs(int maxMissedPongs) {
+        this.maxMissedPongs = maxMissedPongs;
+    }
+
+    public int getPollHoldTimeout() {
+        return pollHoldTimeout;
+    }
+
+    /**
+     * @param pollHoldTimeout Milliseconds to hold an xhr/jsonp poll open while there is nothing to send.
+     *                        Zero or less holds it until a message arrives.
+     */
+    public void setPollHoldTimeout(int pollHoldTimeout) {
+        this.pollHoldTimeout = pollHoldTimeout;
+    }
+
+    public int getPollCoalesceDelay() {
+        return pollCoalesceDelay;
+    }
+
+    /**
+     * @param pollCoalesceDelay Milliseconds an xhr/jsonp poll waits after its first message,
+     *                          letting a burst of messages share one response. Zero responds right away.
+     */
+    public void setPollCoalesceDelay(int pollCoalesceDelay) {
+        this.pollCoalesceDelay = pollCoalesceDelay;
+    }
+
+    public int getEventSourceReplaySize() {
+        return eventSourceReplaySize;
+    }
+
+    /**
+     * @param eventSourceReplaySize Message frames kept per EventSource session. A client reconnecting within the
+     *                              session timeout, with the Last-Event-ID of a frame still kept, gets the frames
+     *                              after it and carries on with the same session. Zero or less, the default,
+     *                              sends no event ids, as SockJS clients do not expect them.
+     */
+    public void setEventSourceReplaySize(int eventSourceReplaySize) {
+        this.eventSourceReplaySize = eventSourceReplaySize;
+    }
+
+    public int getHeavySessionsInterval() {
+        return heavySessionsInterval;
+    }
+
+    /**
+     * @param heavySessionsInterval Milliseconds of traffic the heaviest sessions are picked by
+     */
+    public void setHeavySessionsInterval(int heavySessionsInterval) {
+        this.heavySessionsInterval = heavySessionsInterval;
+    }
+
+    public int getHeavySessionsCount() {
+        return heavySessionsCount;
+    }
+
+    /**
+     * @param heavySessionsCount Sessions listed by getHeaviestSessions(), zero or less for none
+     */
+    public void setHeavySessionsCount(int heavySessionsCount) {
+        this.heavySessionsCount = heavySessionsCount;
+    }
+
+    /**
+     * @return Sessions that received and sent the most bytes during the last complete interval, heaviest first
+     */
+    public List<HeavySessions.SessionTraffic> getHeaviestSessions() {
+        final HeavySessions heavySessions;
+        synchronized (this) {
+            heavySessions = this.heavySessions;
+        }
+        return heavySessions == null ? Collections.<HeavySessions.SessionTraffic>emptyList() : heavySessions.getHeaviest();
+    }
+
+    public boolean isStreamingCompressionEnabled() {
+        return streamingCompressionEnabled;
+    }
+
+    /**
+     * @param streamingCompressionEnabled Encode xhr_streaming, eventsource and htmlfile responses with gzip
+     *                                    or deflate when the client accepts it
+     */
+    public void setStreamingCompressionEnabled(boolean streamingCompressionEnabled) {
+        this.streamingCompressionEnabled = streamingCompressionEnabled;
+    }
+
+    public boolean isWebSocketCompressionEnabled() {
+        return webSocketCompressionEnabled;
+    }
+
+    /**
+     * @param webSocketCompressionEnabled Accept the permessage-deflate extension on WebSocket connections
+     */
+    public void setWebSocketCompressionEnabled(boolean webSocketCompressionEnabled) {
+        this.webSocketCompressionEnabled = webSocketCompressionEnabled;
+    }
+
+    public boolean isWebSocketCompressionContextTakeover() {
+        return webSocketCompressionContextTakeover;
+    }
+
+    /**
+     * @param webSocketCompressionContextTakeover Let messages refer back to earlier ones. Compresses better,
+     *                                            but keeps deflate and inflate state for every connection.
+     *                                            Without it, that state is pooled and shared between connections.
+     */
+    public void setWebSocketCompressionContextTakeover(boolean webSocketCompressionContextTakeover) {
+        this.webSocketCompressionContextTakeover = webSocketCompressionContextTakeover;
+    }
+
+    public int getWebSocketCompressionWindowBits() {
+        return webSocketCompressionWindowBits;
+    }
+
+    /**
+     * @param webSocketCompressionWindowBits Base two logarithm of the deflate window, 9 to 15
+     */
+    public void setWebSocketCompressionWindowBits(int webSocketCompressionWindowBits) {
+        this.webSocketCompressionWindowBits = webSocketCompressionWindowBits;
+    }
+
+    public int getWebSocketCompressionMinSize() {
+        return webSocketCompressionMinSize;
+    }
+
+    /**
+     * @param webSocketCompressionMinSize Bytes a message needs before it is compressed
+     */
+    public void setWebSocketCompressionMinSize(int webSocketCompressionMinSize) {
+        this.webSocketCompressionMinSize = webSocketCompressionMinSize;
+    }
+
+    public int getWebSocketCompressionMaxMemory() {
+        return webSocketCompressionMaxMemory;
+    }
+
+    /**
+     * @param webSocketCompressionMaxMemory Bytes of deflate and inflate state kept per connection with context
+     *                                      takeover. Window size and memory level are lowered to fit.
+     *                                      Zero or less means no cap.
+     */
+    public void setWebSocketCompressionMaxMemory(int webSocketCompressionMaxMemory) {
+        this.webSocketCompressionMaxMemory = webSocketCompressionMaxMemory;
+    }
+
+    public synchronized PerMessageDeflate getPerMessageDeflate() {
+        if (perMessageDeflate == null) {
+            perMessageDeflate = new PerMessageDeflate(this);
+        }
+        return perMessageDeflate;
+    }
+
+    /**
+     * Created on the first WebSocket upgrade, picking up the max message size and subprotocols at that time.
+     */
+    public synchronized WebSocketHandshakers getWebSocketHandshakers() {
+        if (webSocketHandshakers == null) {
+            webSocketHandshakers = new WebSocketHandshakers(this);
+        }
+        return webSocketHandshakers;
+    }
+
+    public synchronized WebSocketHeartbeat getWebSocketHeartbeat() {
+        if (webSocketHeartbeat == null) {
+            webSocketHeartbeat = new WebSocketHeartbeat(this);
+        }
+        return webSocketHeartbeat;
+    }
+
+    /**
+     * Created on the first HTTP transport, picking up the heartbeat interval and poll hold time at that time.
+     */
+    public synchronized IdlePolicies getIdlePolicies() {
+        if (idlePolicies == null) {
+            idlePolicies = new IdlePolicies(this);
+        }
+        return idlePolicies;
+    }
+
     public MetricRegistry getMetricRegistry() {
         return metricRegistry;
     }
@@ -121,6 +450,11 @@ public class Service {
         SessionCallback callback = factory.getSession(sessionId);
         SessionHandler newSession = new SessionHandler(sessionId, callback, this, tm);
         SessionHandler existingSession = sessions.putIfAbsent(sessionId, newSession);
+        if (heavySessions == null) {
+            // Started along with the first session, as the timer is not set before the service is registered
+            heavySessions = new HeavySessions(this, sessions.values());
+            heavySessions.start();
+        }
         return (existingSession == null) ? newSession : existingSession;
     }
 
@@ -134,6 +468,11 @@ public class Service {
         return s;
     }
 
+    /** @return Live view of the sessions, safe to iterate without the service lock */
+    Collection<SessionHandler> getSessions() {
+        return sessions.values();
+    }
+
     public synchronized SessionHandler destroySession(String sessionId) {
         return sessions.remove(sessionId);
     }
@@ -147,6 +486,9 @@ public class Service {
         final TransportMetrics xhrPolling;
         final TransportMetrics xhrSend;
         final TransportMetrics xhrStreaming;
+        /** Microseconds from a WebSocket ping to its pong */
+        final Histogram webSocketRoundTrip;
+        final Meter deadWebSocketsClosed;
 
         public Metrics(String prefix, MetricRegistry metricRegistry) {
             eventSource = new TransportMetrics(prefix, "eventSource", metricRegistry);
@@ -157,6 +499,8 @@ public class Service {
             xhrPolling = new TransportMetrics(prefix, "xhrPolling", metricRegistry);
             xhrSend = new TransportMetrics(prefix, "xhrSend", metricRegistry);
             xhrStreaming = new TransportMetrics(prefix, "xhrStreaming", metricRegistry);
+            webSocketRoundTrip = HdrReservoir.histogram(metricRegistry, MetricRegistry.name(prefix, "webSocketHeartbeat", "roundTrip"));
+            deadWebSocketsClosed = metricRegistry.meter(MetricRegistry.name(prefix, "webSocketHeartbeat", "deadConnectionsClosed"));
         }
 
         public TransportMetrics getEventSource() {
@@ -190,5 +534,35 @@ public class Service {
         public TransportMetrics getXhrStreaming() {
             return xhrStreaming;
         }
+
+        /** @return Messages queued in the sessions of all transports */
+        public long getQueuedMessages() {
+            long queued = 0;
+            for (TransportMetrics tm : all()) {
+                queued += tm.queuedMessages.getCount();
+            }
+            return queued;
+        }
+
+        /** @return Size of the messages queued in the sessions of all transports */
+        public long getQueuedBytes() {
+            long queued = 0;
+            for (TransportMetrics tm : all()) {
+                queued += tm.queuedBytes.getCount();
+            }
+            return queued;
+        }
+
+        private TransportMetrics[] all() {
+            return new TransportMetrics[] { eventSource, htmlFile, jsonp, rawWebSocket, webSocket, xhrPolling, xhrSend, xhrStreaming };
+        }
+
+        public Histogram getWebSocketRoundTrip() {
+            return webSocketRoundTrip;
+        }
+
+        public Meter getDeadWebSocketsClosed() {
+            return deadWebSocketsClosed;
+        }
     }
 }
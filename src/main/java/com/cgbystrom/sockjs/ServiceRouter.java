@@ -6,33 +6,46 @@ import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.util.CharsetUtil;
 import org.jboss.netty.util.HashedWheelTimer;
-import org.jboss.netty.util.Timer;
 
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Values.KEEP_ALIVE;
 
 import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class ServiceRouter extends SimpleChannelHandler {
+public class ServiceRouter extends SimpleChannelHandler implements LifeCycleAwareChannelHandler {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(ServiceRouter.class);
     private static final Pattern SERVER_SESSION = Pattern.compile("^/([^/.]+)/([^/.]+)/");
     private static final String DEFAULT_CLIENT_URL = "http://cdn.sockjs.org/sockjs-0.3.4.min.js";
     private static final Random RANDOM = new Random();
+    private static final String REQUEST_IDLE_HANDLER = "sockjs-request-idle";
     private enum SessionCreation { CREATE_OR_REUSE, FORCE_REUSE, FORCE_CREATE }
 
     private final Map<String, Service> services = new LinkedHashMap<String, Service>();
     private IframePage iframe;
     private MetricRegistry metricRegistry = new MetricRegistry();
-    private Timer timer = new HashedWheelTimer();
+    private CountingTimer timer = new CountingTimer(new HashedWheelTimer());
+    /** Time a connection may go without reading anything while no transport is handling it */
+    private int requestIdleTimeout = 60 * 1000; // milliseconds
+    private IdleStateHandler requestIdleHandler;
+    private int statsInterval = 10 * 1000; // milliseconds
+    private volatile StatsPage statsPage;
+    private final EventLoopMonitor eventLoopMonitor = new EventLoopMonitor(this);
+    private volatile AccessLog accessLog;
 
     public ServiceRouter() {
         setClientUrl(DEFAULT_CLIENT_URL);
@@ -49,9 +62,27 @@ public class ServiceRouter extends SimpleChannelHandler {
             service.setTimer(timer);
         }
 
+        if (service.getEventLoopMonitor() == null) {
+            service.setEventLoopMonitor(eventLoopMonitor);
+        }
+
         return service;
     }
 
+    synchronized List<Service> getServices() {
+        return new ArrayList<Service>(services.values());
+    }
+
+    /** @return Timer of the router, also used by services registered without one */
+    public CountingTimer getTimer() {
+        return timer;
+    }
+
+    /** @return Monitor of the I/O workers running the connections of the router */
+    public EventLoopMonitor getEventLoopMonitor() {
+        return eventLoopMonitor;
+    }
+
     public MetricRegistry getMetricRegistry() {
         return metricRegistry;
     }
@@ -60,6 +91,60 @@ public class ServiceRouter extends SimpleChannelHandler {
         this.metricRegistry = metricRegistry;
     }
 
+    public int getRequestIdleTimeout() {
+        return requestIdleTimeout;
+    }
+
+    /**
+     * @param requestIdleTimeout Milliseconds a connection may wait for its next request, or for the rest of
+     *                           a request that has started, before it is closed. Connections handed to a
+     *                           transport are left to the idle policy of that transport. Zero or less
+     *                           never closes them. Has to be set before the first connection is opened.
+     */
+    public void setRequestIdleTimeout(int requestIdleTimeout) {
+        this.requestIdleTimeout = requestIdleTimeout;
+    }
+
+    public int getStatsInterval() {
+        return statsInterval;
+    }
+
+    /**
+     * @param statsInterval Milliseconds between refreshes of the stats page
+     */
+    public void setStatsInterval(int statsInterval) {
+        this.statsInterval = statsInterval;
+    }
+
+    public AccessLog getAccessLog() {
+        return accessLog;
+    }
+
+    /**
+     * @param accessLog Log the requests are recorded to, started by the caller. Null, the default, logs none.
+     */
+    public void setAccessLog(AccessLog accessLog) {
+        this.accessLog = accessLog;
+    }
+
+    StatsPage getStatsPage() {
+        return statsPage;
+    }
+
+    /**
+     * @param statsPath Path serving stats of the router and its services as JSON, and in the Prometheus
+     *                  text format below it at /prometheus. Null, the default, serves no stats.
+     *                  Anyone reaching the path can read it, so it must not be exposed publicly.
+     */
+    public synchronized void setStatsPath(String statsPath) {
+        if (statsPath == null) {
+            statsPage = null;
+        } else {
+            statsPage = new StatsPage(this, statsPath);
+            statsPage.start();
+        }
+    }
+
     /**
      *
      * @param clientUrl URL to SockJS JavaScript client. Needed by the iframe to properly load.
@@ -69,12 +154,77 @@ public class ServiceRouter extends SimpleChannelHandler {
         iframe = new IframePage(clientUrl);
     }
 
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        IdleStateHandler idleHandler = getRequestIdleHandler();
+        if (idleHandler != null) {
+            ctx.getPipeline().addFirst(REQUEST_IDLE_HANDLER, idleHandler);
+        }
+        super.channelOpen(ctx, e);
+    }
+
+    @Override
+    public void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        eventLoopMonitor.channelConnected(e.getChannel());
+        super.channelConnected(ctx, e);
+    }
+
+    private synchronized IdleStateHandler getRequestIdleHandler() {
+        if (requestIdleHandler == null && requestIdleTimeout > 0) {
+            // Shared by all connections, it keeps its state in the channel handler context
+            requestIdleHandler = new IdleStateHandler(timer, requestIdleTimeout, 0, 0, TimeUnit.MILLISECONDS);
+        }
+        return requestIdleHandler;
+    }
+
+    @Override
+    public void handleUpstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
+        if (e instanceof IdleStateEvent) {
+            // A transport in the pipeline is responsible for the connection and has its own idle policy
+            if (ctx.getPipeline().get(SessionHandler.class) == null) {
+                if (logger.isDebugEnabled())
+                    logger.debug("No request on " + e.getChannel() + " for " + requestIdleTimeout + " ms, closing");
+                metricRegistry.meter(MetricRegistry.name(ServiceRouter.class, "idleConnectionsReaped")).mark();
+                e.getChannel().close();
+            }
+            return;
+        }
+        super.handleUpstream(ctx, e);
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final AccessLog accessLog = this.accessLog;
+        if (accessLog != null) {
+            ctx.setAttachment(new LoggedRequest(accessLog, (HttpRequest) e.getMessage()));
+        }
+        if (Events.ENABLED) {
+            // Services rewrite the URI of the request to be relative to them
+            final String uri = ((HttpRequest) e.getMessage()).getUri();
+            final long start = System.nanoTime();
+            try {
+                dispatch(ctx, e);
+            } finally {
+                Events.RECORDER.requestDispatched(uri, System.nanoTime() - start);
+            }
+        } else {
+            dispatch(ctx, e);
+        }
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         HttpRequest request = (HttpRequest)e.getMessage();
         if (logger.isDebugEnabled())
             logger.debug("URI " + request.getUri());
 
+        final StatsPage stats = statsPage;
+        if (stats != null && stats.matches(request.getUri())) {
+            HttpResponse response = new DefaultHttpResponse(request.getProtocolVersion(), HttpResponseStatus.OK);
+            stats.handle(request, response);
+            writeResponse(e.getChannel(), request, response);
+            return;
+        }
+
         for (Service service : services.values()) {
             // Check if there's a service registered with this URL
             if (request.getUri().startsWith(service.getUrl())) {
@@ -90,18 +240,60 @@ public class ServiceRouter extends SimpleChannelHandler {
         writeResponse(e.getChannel(), request, response);
     }
 
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final Object attachment = ctx.getAttachment();
+        if (attachment instanceof LoggedRequest) {
+            ((LoggedRequest) attachment).written(e);
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        final Object attachment = ctx.getAttachment();
+        if (attachment instanceof LoggedRequest) {
+            // Streaming responses usually end with the connection
+            ((LoggedRequest) attachment).complete();
+        }
+        super.channelClosed(ctx, e);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         final String connectionClosedMsg = "An existing connection was forcibly closed by the remote host";
         final Throwable t = e.getCause();
 
-        if (t instanceof IOException && t.getMessage().equalsIgnoreCase(connectionClosedMsg)) {
+        if (t instanceof IOException && connectionClosedMsg.equalsIgnoreCase(t.getMessage())) {
             logger.debug("Unexpected close (may be safe to ignore).");
+        } else if (t instanceof ClosedChannelException) {
+            // Writes still pending on a connection closed by an idle policy
+            logger.debug("Write to closed channel (may be safe to ignore).");
         } else {
             super.exceptionCaught(ctx, e);
         }
     }
 
+    @Override
+    public void beforeAdd(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    @Override
+    public void afterAdd(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    @Override
+    public void beforeRemove(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    @Override
+    public void afterRemove(ChannelHandlerContext ctx) throws Exception {
+        // Upgraded to a WebSocket, which has its own heartbeat
+        if (ctx.getPipeline().get(REQUEST_IDLE_HANDLER) != null) {
+            ctx.getPipeline().remove(REQUEST_IDLE_HANDLER);
+        }
+    }
+
     private void handleService(ChannelHandlerContext ctx, MessageEvent e, Service service) throws Exception {
         HttpRequest request = (HttpRequest)e.getMessage();
         request.setUri(request.getUri().replaceFirst(service.getUrl(), ""));
@@ -123,10 +315,11 @@ public class ServiceRouter extends SimpleChannelHandler {
             writeResponse(e.getChannel(), request, response);
         } else if (path.startsWith("/websocket")) {
             // Raw web socket
-            ctx.getPipeline().addLast("sockjs-websocket", new RawWebSocketTransport(path));
+            ctx.getPipeline().addLast("sockjs-websocket", new RawWebSocketTransport(path, service));
             SessionHandler sessionHandler = service.getOrCreateSession(
                     "rawwebsocket-" + RANDOM.nextLong(),
                     service.getMetrics().getRawWebSocket(), true);
+            logSession(ctx, "rawwebsocket", sessionHandler.getId(), false);
             ctx.getPipeline().addLast("sockjs-session-handler", sessionHandler);
         } else {
             if (!handleSession(ctx, e, path, service)) {
@@ -154,30 +347,35 @@ public class ServiceRouter extends SimpleChannelHandler {
         TransportMetrics tm;
         if (transport.equals("/xhr_send")) {
             tm = sm.getMetrics().getXhrSend();
-            pipeline.addLast("sockjs-xhr-send", new XhrSendTransport(sm.getMetrics(), false));
+            pipeline.addLast("sockjs-xhr-send", new XhrSendTransport(sm, false));
             sessionCreation = SessionCreation.FORCE_REUSE; // Expect an existing session
         } else if (transport.equals("/jsonp_send")) {
             tm = sm.getMetrics().getXhrSend();
-            pipeline.addLast("sockjs-jsonp-send", new XhrSendTransport(sm.getMetrics(), true));
+            pipeline.addLast("sockjs-jsonp-send", new XhrSendTransport(sm, true));
             sessionCreation = SessionCreation.FORCE_REUSE; // Expect an existing session
         } else if (transport.equals("/xhr_streaming")) {
             tm = sm.getMetrics().getXhrStreaming();
-            pipeline.addLast("sockjs-xhr-streaming", new XhrStreamingTransport(sm.getMetrics(), sm.getMaxResponseSize()));
+            addIdleHandler(pipeline, sm.getIdlePolicies().getStreaming());
+            pipeline.addLast("sockjs-xhr-streaming", new XhrStreamingTransport(sm));
         } else if (transport.equals("/xhr")) {
             tm = sm.getMetrics().getXhrPolling();
-            pipeline.addLast("sockjs-xhr-polling", new XhrPollingTransport(sm.getMetrics()));
+            addIdleHandler(pipeline, sm.getIdlePolicies().getPolling());
+            pipeline.addLast("sockjs-xhr-polling", new XhrPollingTransport(sm));
         } else if (transport.equals("/jsonp")) {
             tm = sm.getMetrics().getJsonp();
-            pipeline.addLast("sockjs-jsonp-polling", new JsonpPollingTransport(sm.getMetrics()));
+            addIdleHandler(pipeline, sm.getIdlePolicies().getPolling());
+            pipeline.addLast("sockjs-jsonp-polling", new JsonpPollingTransport(sm));
         } else if (transport.equals("/htmlfile")) {
             tm = sm.getMetrics().getHtmlFile();
-            pipeline.addLast("sockjs-htmlfile-polling", new HtmlFileTransport(sm.getMetrics(), sm.getMaxResponseSize()));
+            addIdleHandler(pipeline, sm.getIdlePolicies().getStreaming());
+            pipeline.addLast("sockjs-htmlfile-polling", new HtmlFileTransport(sm));
         } else if (transport.equals("/eventsource")) {
             tm = sm.getMetrics().getEventSource();
-            pipeline.addLast("sockjs-eventsource", new EventSourceTransport(sm.getMetrics(), sm.getMaxResponseSize()));
+            addIdleHandler(pipeline, sm.getIdlePolicies().getStreaming());
+            pipeline.addLast("sockjs-eventsource", new EventSourceTransport(sm));
         } else if (transport.equals("/websocket")) {
             tm = sm.getMetrics().getWebSocket();
-            pipeline.addLast("sockjs-websocket", new WebSocketTransport(sm.getUrl() + path, sm));
+            pipeline.addLast("sockjs-websocket", new WebSocketTransport(path, sm));
             // Websockets should re-create a session every time
             sessionCreation = SessionCreation.FORCE_CREATE;
         } else {
@@ -186,6 +384,7 @@ public class ServiceRouter extends SimpleChannelHandler {
 
         tm.connectionsOpen.inc();
         tm.connectionsOpened.mark();
+        logSession(ctx, transport.substring(1), sessionId, pipeline.getLast() instanceof StreamingTransport);
 
         SessionHandler sessionHandler = null;
         switch (sessionCreation) {
@@ -207,6 +406,19 @@ public class ServiceRouter extends SimpleChannelHandler {
         return true;
     }
 
+    private static void logSession(ChannelHandlerContext ctx, String transport, String sessionId, boolean isStreaming) {
+        final Object attachment = ctx.getAttachment();
+        if (attachment instanceof LoggedRequest) {
+            ((LoggedRequest) attachment).setSession(transport, sessionId, isStreaming);
+        }
+    }
+
+    private static void addIdleHandler(ChannelPipeline pipeline, IdleStateHandler idleHandler) {
+        if (idleHandler != null) {
+            pipeline.addLast(IdlePolicies.HANDLER_NAME, idleHandler);
+        }
+    }
+
     /** Handle conditional connection close depending on keep-alive */
     private void writeResponse(Channel channel, HttpRequest request, HttpResponse response) {
         response.setHeader(CONTENT_LENGTH, response.getContent().readableBytes());
@@ -238,5 +450,65 @@ public class ServiceRouter extends SimpleChannelHandler {
         return ChannelBuffers.copiedBuffer(sb.toString(), CharsetUtil.UTF_8);
     }
 
+    /** A request on its way to the access log, the attachment of the router's context while it is the last one */
+    private static class LoggedRequest implements ChannelFutureListener {
+        private final AccessLog accessLog;
+        private final long timestamp = System.currentTimeMillis();
+        private final long start = System.nanoTime();
+        private final String method;
+        private final String uri;
+        private String transport;
+        private String sessionId;
+        /** Streaming responses end with the last chunk, or with the connection for HTTP/1.0 */
+        private boolean isStreaming;
+        private int status;
+        private long bytes;
+        private boolean isLogged;
+
+        LoggedRequest(AccessLog accessLog, HttpRequest request) {
+            this.accessLog = accessLog;
+            this.method = request.getMethod().getName();
+            this.uri = request.getUri();
+        }
+
+        synchronized void setSession(String transport, String sessionId, boolean isStreaming) {
+            this.transport = transport;
+            this.sessionId = sessionId;
+            this.isStreaming = isStreaming;
+        }
+
+        /** Writes may come from any thread sending to a session */
+        synchronized void written(MessageEvent e) {
+            final Object msg = e.getMessage();
+            boolean isLast = false;
+            if (msg instanceof HttpResponse) {
+                final HttpResponse response = (HttpResponse) msg;
+                status = response.getStatus().getCode();
+                bytes += response.getContent().readableBytes();
+                isLast = !isStreaming && !response.isChunked() &&
+                        !HttpHeaders.Values.CHUNKED.equalsIgnoreCase(response.getHeader(TRANSFER_ENCODING));
+            } else if (msg instanceof HttpChunk) {
+                final HttpChunk chunk = (HttpChunk) msg;
+                bytes += chunk.getContent().readableBytes();
+                isLast = chunk.isLast();
+            }
+            if (isLast) {
+                e.getFuture().addListener(this);
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture future) throws Exception {
+            complete();
+        }
 
+        synchronized void complete() {
+            if (isLogged) {
+                return;
+            }
+            isLogged = true;
+            accessLog.record(timestamp, method, uri, transport, sessionId, status, bytes,
+                    TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+        }
+    }
 }
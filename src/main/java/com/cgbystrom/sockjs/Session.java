@@ -1,7 +1,11 @@
 package com.cgbystrom.sockjs;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+
 public interface Session {
     public void send(String message);
+    /** Sent as a binary frame on raw WebSockets. SockJS transports only carry text, they get it decoded as UTF-8. */
+    public void send(ChannelBuffer message);
     public void close();
     public String getId();
 }
@@ -1,6 +1,9 @@
 package com.cgbystrom.sockjs;
 
+import com.cgbystrom.sockjs.transports.EventSourceTransport;
+import com.cgbystrom.sockjs.transports.PollingTransport;
 import com.cgbystrom.sockjs.transports.TransportMetrics;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
@@ -8,8 +11,10 @@ import org.jboss.netty.util.CharsetUtil;
 import org.jboss.netty.util.Timeout;
 import org.jboss.netty.util.TimerTask;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.Random;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -19,20 +24,50 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Only session specific logic and is unaware of underlying transport.
  * This is by design and Netty enables a clean way to do this through the pipeline and handlers.
  */
-public class SessionHandler extends SimpleChannelHandler implements Session {
+public class SessionHandler extends SimpleChannelHandler implements Session, LifeCycleAwareChannelHandler {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(SessionHandler.class);
+    private static final Random RANDOM = new Random();
     public enum State { CONNECTING, OPEN, CLOSED, INTERRUPTED }
 
     private String id;
     private SessionCallback sessionCallback;
     private Channel channel;
-    private State state = State.CONNECTING;
+    /** Changed under the session lock, volatile for the stats page to read */
+    private volatile State state = State.CONNECTING;
     private final LinkedList<SockJsMessage> messageQueue = new LinkedList<SockJsMessage>();
+    /** Sum of SockJsMessage.size() of the queued messages */
+    private long messageQueueSize;
     private final AtomicBoolean serverHasInitiatedClose = new AtomicBoolean(false);
     private Frame.CloseFrame closeReason;
     private Service service;
     private TransportMetrics transportMetrics;
     private Timeout sessionTimeout;
+    /** Polling channels are answered with a single frame, allowing us to hold or coalesce the response */
+    private boolean isPollingChannel = false;
+    private Timeout pollHoldTimeout;
+    private Timeout pollCoalesceTimeout;
+    /** EventSource channels get ids on their message frames, and may resume after a network error */
+    private boolean isEventSourceChannel = false;
+    /** Set while an EventSource channel that went down unexpectedly may still be resumed */
+    private boolean isResumable = false;
+    private long lastEventId;
+    /** Last message frames sent to EventSource channels, for a resuming client to pick up those it missed */
+    private final ArrayDeque<Frame.MessageFrame> replayRing = new ArrayDeque<Frame.MessageFrame>();
+    /** Traffic of the session, updated under the session lock and read without it */
+    private volatile long bytesReceived;
+    private volatile long messagesReceived;
+    private volatile long bytesSent;
+    private volatile long messagesSent;
+    private volatile int reconnects;
+    private volatile long lastActivity = System.currentTimeMillis();
+    /** Bytes counted into earlier intervals of the heavy sessions report, only touched by its timer */
+    private long trafficReported;
+    /** Messages to send before the next one sampled for send latency, zero if none are */
+    private int sendsUntilSample;
+    /** Messages sent since the last one traced */
+    private int sendsSinceTrace;
+    /** Content a streaming response may carry, grown while the client keeps reconnecting because of it */
+    private int maxResponseSize;
 
     protected SessionHandler(String id, SessionCallback sessionCallback, Service sm,
                              TransportMetrics tm) {
@@ -40,6 +75,13 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
         this.sessionCallback = sessionCallback;
         this.service = sm;
         this.transportMetrics = tm;
+        this.maxResponseSize = sm.getMaxResponseSize();
+        if (Events.ENABLED) {
+            Events.RECORDER.sessionCreated(id);
+        }
+        final int sampleInterval = sm.getSendLatencySampleInterval();
+        // Start anywhere in the interval, so sessions sending only a few messages get sampled too
+        this.sendsUntilSample = sampleInterval > 0 ? 1 + RANDOM.nextInt(sampleInterval) : 0;
         if (logger.isDebugEnabled())
             logger.debug("Session " + id + " created");
     }
@@ -58,26 +100,56 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
             setState(State.OPEN);
             closeReason = null;
             setChannel(e.getChannel());
+            isEventSourceChannel = ctx.getPipeline().get(EventSourceTransport.class) != null;
             e.getChannel().write(Frame.openFrame());
             // FIXME: Ability to reject a connection here by returning false in callback to onOpen?
-            sessionCallback.onOpen(this);
+            final long start = System.nanoTime();
+            try {
+                sessionCallback.onOpen(this);
+            } finally {
+                callbackDone(start);
+            }
             // FIXME: Either start the heartbeat or flush pending messages in queue
             flush();
         } else if (state == State.OPEN) {
             if (channel != null) {
-                logger.debug("Session " + id + " already have a channel connected.");
+                if (logger.isDebugEnabled())
+                    logger.debug("Session " + id + " already have a channel connected.");
                 throw new LockException(e.getChannel());
             }
+            final EventSourceTransport eventSource = ctx.getPipeline().get(EventSourceTransport.class);
+            final boolean resuming = isResumable;
+            if (resuming) {
+                isResumable = false;
+                if (eventSource == null || !canReplayFrom(eventSource.getLastEventId())) {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Session " + id + " has been interrupted by network error, cannot resume.");
+                    setState(State.INTERRUPTED);
+                    e.getChannel().write(Frame.closeFrame(1002, "Connection interrupted"));
+                    return;
+                }
+            }
             serverHasInitiatedClose.set(false);
             setChannel(e.getChannel());
-            logger.debug("Session " + id + " is open, flushing..");
+            reconnects++;
+            lastActivity = System.currentTimeMillis();
+            isPollingChannel = ctx.getPipeline().get(PollingTransport.class) != null;
+            isEventSourceChannel = eventSource != null;
+            if (resuming) {
+                replayFrom(eventSource.getLastEventId());
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " is open, flushing..");
             flush();
+            startPollHoldTimeout();
         } else if (state == State.CLOSED) {
-            logger.debug("Session " + id + " is closed, go away.");
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " is closed, go away.");
             final Frame.CloseFrame frame = closeReason == null ? Frame.closeFrame(3000, "Go away!") : closeReason;
             e.getChannel().write(frame);
         } else if (state == State.INTERRUPTED) {
-            logger.debug("Session " + id + " has been interrupted by network error, cannot accept channel.");
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " has been interrupted by network error, cannot accept channel.");
             e.getChannel().write(Frame.closeFrame(1002, "Connection interrupted"));//.addListener(ChannelFutureListener.CLOSE);
         } else {
             throw new Exception("Invalid channel state: " + state);
@@ -89,7 +161,8 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
         if (channel == e.getChannel()) {
             // This may be a bad practice of determining close initiator.
             // See http://stackoverflow.com/questions/8254060/how-to-know-if-a-channeldisconnected-comes-from-the-client-or-server-in-a-netty
-            logger.debug("Session " + id + " requested close by server " + e.getChannel());
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " requested close by server " + e.getChannel());
             serverHasInitiatedClose.set(true);
         }
         super.closeRequested(ctx, e);
@@ -97,7 +170,7 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
 
     @Override
     public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        if (e.getMessage() instanceof Frame) {
+        if (e.getMessage() instanceof Frame && logger.isDebugEnabled()) {
             Frame f = (Frame) e.getMessage();
             String data = f.getData().toString(CharsetUtil.UTF_8);
             logger.debug("Session " + id + " for channel " + e.getChannel() + " sending: " + data);
@@ -105,13 +178,29 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
         super.writeRequested(ctx, e);
     }
 
+    @Override
+    public synchronized void channelInterestChanged(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // Messages queued up while the channel was saturated leave together in one frame
+        if (channel == e.getChannel() && channel.isWritable()) {
+            flush();
+        }
+        super.channelInterestChanged(ctx, e);
+    }
+
     @Override
     public synchronized void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
-        if (state == State.OPEN && !serverHasInitiatedClose.get()) {
-            logger.debug("Session " + id + " underlying channel closed unexpectedly. Flagging session as interrupted." + e.getChannel());
+        if (state == State.OPEN && !serverHasInitiatedClose.get() && channel == e.getChannel() &&
+                isEventSourceChannel && service.getEventSourceReplaySize() > 0) {
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " underlying EventSource channel closed unexpectedly. Waiting for it to resume. " + e.getChannel());
+            isResumable = true;
+        } else if (state == State.OPEN && !serverHasInitiatedClose.get()) {
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " underlying channel closed unexpectedly. Flagging session as interrupted." + e.getChannel());
             setState(State.INTERRUPTED);
         } else {
-            logger.debug("Session " + id + " underlying channel closed " + e.getChannel());
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " underlying channel closed " + e.getChannel());
         }
         // FIXME: Stop any heartbeat
         // FIXME: Timer to expire the connection? Should not close session here.
@@ -120,11 +209,85 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
         super.channelClosed(ctx, e);
     }
 
+    @Override
+    public void beforeAdd(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    @Override
+    public void afterAdd(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    @Override
+    public void beforeRemove(ChannelHandlerContext ctx) throws Exception {
+    }
+
+    @Override
+    public void afterRemove(ChannelHandlerContext ctx) throws Exception {
+        // Transports remove us once their response is complete, possibly leaving a persistent
+        // connection open. Either way the session is no longer bound to that channel.
+        // A session removed before it ever got a channel, like one of a rejected jsonp poll, will not
+        // see the channel close either and must start timing out here.
+        synchronized (this) {
+            if (channel == ctx.getChannel() || channel == null && state == State.CONNECTING) {
+                unsetChannel(ctx.getChannel());
+            }
+        }
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         SockJsMessage msg = (SockJsMessage)e.getMessage();
-        logger.debug("Session " + id + " received message: " + msg.getMessage());
-        sessionCallback.onMessage(msg.getMessage());
+        countReceived(msg);
+        final MessageTrace trace = msg.trace;
+        if (trace != null) {
+            trace.setSessionId(id);
+            trace.stamp(MessageTrace.Stage.DELIVERED);
+        }
+        if (msg.isBinary()) {
+            if (!isBinarySupported()) {
+                // Transports refuse binary messages for such sessions, this is only a safety net
+                if (logger.isDebugEnabled())
+                    logger.debug("Session " + id + " dropped a binary message, it has no BinarySessionCallback");
+                return;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " received binary message");
+            final long start = System.nanoTime();
+            try {
+                ((BinarySessionCallback) sessionCallback).onMessage(msg.getData());
+            } finally {
+                callbackDone(start);
+                traceDone(trace, MessageTrace.Stage.CALLBACK_RETURNED);
+            }
+            return;
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Session " + id + " received message: " + msg.getMessage());
+        final long start = System.nanoTime();
+        try {
+            sessionCallback.onMessage(msg.getMessage());
+        } finally {
+            callbackDone(start);
+            traceDone(trace, MessageTrace.Stage.CALLBACK_RETURNED);
+        }
+    }
+
+    /** Counts the time since start into the callback time of the I/O worker calling back */
+    private void callbackDone(long start) {
+        final EventLoopMonitor monitor = service.getEventLoopMonitor();
+        if (monitor != null) {
+            monitor.callbackTime(System.nanoTime() - start);
+        }
+    }
+
+    /** Hands the trace of a sampled message to the sink, after the last stage it reached */
+    private void traceDone(MessageTrace trace, MessageTrace.Stage last) {
+        if (trace != null) {
+            if (last != null) {
+                trace.stamp(last);
+            }
+            service.getTraceSink().record(trace);
+        }
     }
 
     @Override
@@ -136,17 +299,102 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
     }
 
     @Override
-    public synchronized void send(String message) {
-        final SockJsMessage msg = new SockJsMessage(message);
+    public void send(String message) {
+        send(new SockJsMessage(message));
+    }
+
+    @Override
+    public void send(ChannelBuffer message) {
+        send(new SockJsMessage(message));
+    }
+
+    private synchronized void send(SockJsMessage msg) {
+        if (state == State.CLOSED) {
+            // Nothing but the close frame is sent anymore, queueing it would only grow the backlog for good
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " is closed, dropped a message");
+            return;
+        }
+        bytesSent += msg.size();
+        messagesSent++;
+        lastActivity = System.currentTimeMillis();
+        if (sendsUntilSample > 0 && --sendsUntilSample == 0) {
+            msg.sendTime = System.nanoTime();
+            sendsUntilSample = service.getSendLatencySampleInterval();
+        }
+        final int traceSampleInterval = service.getTraceSampleInterval();
+        if (traceSampleInterval > 0 && ++sendsSinceTrace >= traceSampleInterval) {
+            sendsSinceTrace = 0;
+            msg.trace = new MessageTrace(false);
+            msg.trace.setSessionId(id);
+            msg.trace.stamp(MessageTrace.Stage.SENT);
+        }
+        if (isPollingChannel && channel != null && service.getPollCoalesceDelay() > 0) {
+            // Hold the poll response back for a moment so that a burst of messages leaves in a single frame
+            enqueue(msg);
+            startPollCoalesceTimeout();
+            return;
+        }
         // Check and see if we can send the message straight away
         if (channel != null && channel.isWritable() && messageQueue.isEmpty()) {
-            channel.write(Frame.messageFrame(msg));
+            write(Frame.messageFrame(msg));
         } else {
-            messageQueue.addLast(msg);
+            enqueue(msg);
             flush();
         }
     }
 
+    private synchronized void countReceived(SockJsMessage msg) {
+        bytesReceived += msg.size();
+        messagesReceived++;
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /** @return Whether the callback takes binary messages, being a BinarySessionCallback */
+    public boolean isBinarySupported() {
+        return sessionCallback instanceof BinarySessionCallback;
+    }
+
+    /** @return Size of the messages received, see SockJsMessage.size() */
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getMessagesReceived() {
+        return messagesReceived;
+    }
+
+    /** @return Size of the messages sent, see SockJsMessage.size() */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public long getMessagesSent() {
+        return messagesSent;
+    }
+
+    /** @return Connections the session got after its first, every poll counting as one */
+    public int getReconnects() {
+        return reconnects;
+    }
+
+    /** @return System.currentTimeMillis() of the last message received or sent, or connection */
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /** @return Bytes received and sent since the last call */
+    long startTrafficInterval() {
+        final long total = bytesReceived + bytesSent;
+        final long interval = total - trafficReported;
+        trafficReported = total;
+        return interval;
+    }
+
     @Override
     public void close() {
         close(3000, "Go away!");
@@ -159,24 +407,51 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
 
     public synchronized void close(int code, String message) {
         if (state != State.CLOSED) {
-            logger.debug("Session " + id + " server initiated close, closing...");
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " server initiated close, closing...");
             setState(State.CLOSED);
 
+            // Deliver any messages still waiting to be coalesced into a poll response first
+            flush();
+
             if (channel != null && channel.isWritable()) {
                 channel.write(Frame.closeFrame(code, message));
             }
+            // Closed sessions only ever answer with the close frame, whatever is left will not be sent
+            clearQueue();
 
             // FIXME: Should we really call onClose here? Potentially calling it twice for same session close?
+            final long start = System.nanoTime();
             try {
                 sessionCallback.onClose();
             } catch (Exception e) {
                 if (sessionCallback.onError(e)) {
                     throw new RuntimeException(e);
                 }
+            } finally {
+                callbackDone(start);
             }
         }
     }
 
+    public synchronized int getMaxResponseSize() {
+        return maxResponseSize;
+    }
+
+    /**
+     * A streaming response of this session was closed for reaching the max response size, which
+     * the client answers with a new request right away. Let its next response carry twice as much,
+     * up to the ceiling set on the service.
+     */
+    public synchronized void maxResponseSizeReached() {
+        final int ceiling = service.getMaxResponseSizeCeiling();
+        if (maxResponseSize < ceiling) {
+            maxResponseSize = (int) Math.min(2L * maxResponseSize, ceiling);
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " max response size raised to " + maxResponseSize);
+        }
+    }
+
     public void setState(State state) {
         switch (state) {
             case OPEN:
@@ -191,15 +466,21 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
                 }
 
         }
+        final State from = this.state;
         this.state = state;
 
-        logger.debug("Session " + id + " state changed to " + state);
+        if (logger.isDebugEnabled())
+            logger.debug("Session " + id + " state changed to " + state);
+        if (Events.ENABLED && from != state) {
+            Events.RECORDER.sessionStateChanged(id, from, state);
+        }
     }
 
     private void setChannel(Channel channel) {
         this.channel = channel;
         stopSessionTimeout();
-        logger.debug("Session " + id + " channel added");
+        if (logger.isDebugEnabled())
+            logger.debug("Session " + id + " channel added");
     }
 
     private synchronized void unsetChannel(Channel channel) {
@@ -207,9 +488,13 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
             return;
         }
         this.channel = null;
+        isPollingChannel = false;
+        isEventSourceChannel = false;
+        stopPollTimeouts();
 
         startSessionTimeout();
-        logger.debug("Session " + id + " channel removed. " + channel);
+        if (logger.isDebugEnabled())
+            logger.debug("Session " + id + " channel removed. " + channel);
     }
 
     private synchronized void flush() {
@@ -218,20 +503,105 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
         }
 
         if (!messageQueue.isEmpty()) {
-            logger.debug("Session " + id + " flushing queue");
-            channel.write(Frame.messageFrame(new ArrayList<SockJsMessage>(messageQueue).toArray(new SockJsMessage[messageQueue.size()])));
-            messageQueue.clear();
+            if (logger.isDebugEnabled())
+                logger.debug("Session " + id + " flushing queue");
+            transportMetrics.queueLengthAtFlush.update(messageQueue.size());
+            write(Frame.messageFrame(new ArrayList<SockJsMessage>(messageQueue).toArray(new SockJsMessage[messageQueue.size()])));
+            clearQueue();
+        }
+    }
+
+    /** Queue a message, keeping the totals of the transport up to date rather than adding up queues when asked */
+    private void enqueue(SockJsMessage msg) {
+        messageQueue.addLast(msg);
+        final int size = msg.size();
+        messageQueueSize += size;
+        transportMetrics.queuedMessages.inc();
+        transportMetrics.queuedBytes.inc(size);
+        transportMetrics.maxQueueDepth.update(messageQueue.size());
+    }
+
+    private void clearQueue() {
+        transportMetrics.queuedMessages.dec(messageQueue.size());
+        transportMetrics.queuedBytes.dec(messageQueueSize);
+        messageQueue.clear();
+        messageQueueSize = 0;
+    }
+
+    private void write(Frame.MessageFrame frame) {
+        final int replaySize = service.getEventSourceReplaySize();
+        if (isEventSourceChannel && replaySize > 0) {
+            frame.setEventId(++lastEventId);
+            replayRing.addLast(frame);
+            while (replayRing.size() > replaySize) {
+                replayRing.removeFirst();
+            }
+        }
+        final SockJsMessage[] messages = frame.getMessages();
+        boolean isSampled = false;
+        boolean isTraced = false;
+        for (SockJsMessage message : messages) {
+            isSampled |= message.sendTime != 0;
+            isTraced |= message.trace != null;
+        }
+        if (isTraced) {
+            frame.setTraced();
+            frame.traceStage(MessageTrace.Stage.FLUSHED);
+        }
+
+        final ChannelFuture future = channel.write(frame);
+        if (isSampled || isTraced) {
+            recordWritten(future, messages);
+        }
+    }
+
+    /**
+     * Once written, record how long the messages sampled for send latency took since they were sent,
+     * and hand the traces of those sampled for tracing to the sink
+     */
+    private void recordWritten(ChannelFuture future, final SockJsMessage[] messages) {
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                final long now = System.nanoTime();
+                for (SockJsMessage message : messages) {
+                    if (message.sendTime != 0 && future.isSuccess()) {
+                        transportMetrics.sendLatency.update(TimeUnit.NANOSECONDS.toMicros(now - message.sendTime));
+                    }
+                    traceDone(message.trace, future.isSuccess() ? MessageTrace.Stage.WRITTEN : null);
+                }
+            }
+        });
+    }
+
+    /** @return Whether every frame after the given one is still in the replay ring */
+    private boolean canReplayFrom(long eventId) {
+        if (eventId < 0 || eventId > lastEventId) {
+            return false;
         }
+        return eventId == lastEventId || !replayRing.isEmpty() && replayRing.getFirst().getEventId() <= eventId + 1;
+    }
+
+    private void replayFrom(long eventId) {
+        for (Frame.MessageFrame frame : replayRing) {
+            if (frame.getEventId() > eventId) {
+                channel.write(frame);
+            }
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Session " + id + " resumed after event " + eventId + " of " + lastEventId);
     }
 
     private void startSessionTimeout() {
+        stopSessionTimeout();
         sessionTimeout = service.getTimer().newTimeout(new TimerTask() {
             @Override
             public void run(Timeout timeout) throws Exception {
                 if (timeout.isCancelled()) {
                     return;
                 }
-                logger.debug("Session " + id + " timed out. Closing and destroying...");
+                if (logger.isDebugEnabled())
+                    logger.debug("Session " + id + " timed out. Closing and destroying...");
                 SessionHandler.this.close(1002, "Connection interrupted");
                 service.destroySession(id);
             }
@@ -244,6 +614,66 @@ public class SessionHandler extends SimpleChannelHandler implements Session {
         }
     }
 
+    /** Answer a poll with a heartbeat if nothing has been sent to it within the hold time */
+    private void startPollHoldTimeout() {
+        final int holdTimeout = service.getPollHoldTimeout();
+        if (!isPollingChannel || channel == null || holdTimeout <= 0) {
+            return;
+        }
+
+        final Channel heldChannel = channel;
+        pollHoldTimeout = service.getTimer().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                synchronized (SessionHandler.this) {
+                    if (timeout.isCancelled() || channel != heldChannel) {
+                        return;
+                    }
+                    pollHoldTimeout = null;
+                    if (logger.isDebugEnabled())
+                        logger.debug("Session " + id + " poll held for " + holdTimeout + " ms, sending heartbeat");
+                    if (channel.isWritable()) {
+                        channel.write(Frame.heartbeatFrame());
+                    }
+                }
+            }
+        }, holdTimeout, TimeUnit.MILLISECONDS);
+    }
+
+    private void startPollCoalesceTimeout() {
+        if (pollCoalesceTimeout != null) {
+            return;
+        }
+        if (pollHoldTimeout != null) {
+            pollHoldTimeout.cancel();
+            pollHoldTimeout = null;
+        }
+
+        pollCoalesceTimeout = service.getTimer().newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) throws Exception {
+                synchronized (SessionHandler.this) {
+                    if (timeout.isCancelled()) {
+                        return;
+                    }
+                    pollCoalesceTimeout = null;
+                    flush();
+                }
+            }
+        }, service.getPollCoalesceDelay(), TimeUnit.MILLISECONDS);
+    }
+
+    private void stopPollTimeouts() {
+        if (pollHoldTimeout != null) {
+            pollHoldTimeout.cancel();
+            pollHoldTimeout = null;
+        }
+        if (pollCoalesceTimeout != null) {
+            pollCoalesceTimeout.cancel();
+            pollCoalesceTimeout = null;
+        }
+    }
+
     public static class NotFoundException extends Exception {
         public NotFoundException(String baseUrl, String sessionId) {
             super("Session '" + sessionId + "' not found in sessionCallback '" + baseUrl + "'");
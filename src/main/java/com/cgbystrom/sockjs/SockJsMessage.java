@@ -1,18 +1,63 @@
 package com.cgbystrom.sockjs;
 
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+
 public class SockJsMessage {
     private String message;
+    private final ChannelBuffer data;
+    /** System.nanoTime() of the Session.send() call if the message is sampled for send latency, otherwise zero */
+    long sendTime;
+    /** Set if the message is sampled for tracing, see Service.setTraceSampleInterval() */
+    MessageTrace trace;
 
     public SockJsMessage(String message) {
         this.message = message;
+        this.data = null;
+    }
+
+    /**
+     * A binary message. Only raw WebSocket connections carry it as is.
+     */
+    public SockJsMessage(ChannelBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * @return Bytes of a binary message, characters of a text message
+     */
+    public int size() {
+        return data != null ? data.readableBytes() : message.length();
     }
 
+    public boolean isBinary() {
+        return data != null;
+    }
+
+    /**
+     * @return The message as text, binary messages decoded as UTF-8
+     */
     public String getMessage() {
+        if (message == null && data != null) {
+            message = data.toString(CharsetUtil.UTF_8);
+        }
         return message;
     }
 
+    /**
+     * @return Content of a binary message, null for text messages
+     */
+    public ChannelBuffer getData() {
+        return data;
+    }
+
     @Override
     public String toString() {
+        if (data != null) {
+            return "SockJsMessage{" +
+                    "data=" + data.readableBytes() + " bytes" +
+                    '}';
+        }
         return "SockJsMessage{" +
                 "message='" + message + '\'' +
                 '}';
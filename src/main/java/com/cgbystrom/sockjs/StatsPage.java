@@ -0,0 +1,426 @@
+package com.cgbystrom.sockjs;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metered;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBufferOutputStream;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.QueryStringDecoder;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.CharsetUtil;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stats of the router and its services, as JSON on the stats path and in the Prometheus text format
+ * on the stats path followed by /prometheus.
+ *
+ * Both are rendered on the router timer once per stats interval and kept as buffers, so a request only
+ * duplicates the last one and scraping never waits for a lock on the hot path.
+ *
+ * The page has no access control and is served on the port of the services, so it should be kept off
+ * the public network, by a proxy in front or a path that is not forwarded. Session ids are never shown,
+ * since knowing one is enough to send and receive as the session. Sessions are told apart by a salted
+ * hash of their id instead, which stays the same for as long as the process runs.
+ */
+public class StatsPage implements TimerTask {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(StatsPage.class);
+    private static final String PROMETHEUS_PATH = "/prometheus";
+    private static final String CONTENT_TYPE_JSON = "application/json; charset=UTF-8";
+    private static final String CONTENT_TYPE_PROMETHEUS = "text/plain; version=0.0.4; charset=UTF-8";
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final double[] QUANTILES = { 0.5, 0.75, 0.95, 0.99, 0.999 };
+    private static final byte[] ID_SALT = new byte[16];
+
+    static {
+        new SecureRandom().nextBytes(ID_SALT);
+    }
+
+    private final ServiceRouter router;
+    private final String path;
+    private volatile ChannelBuffer json;
+    private volatile ChannelBuffer prometheus;
+    /** When the timer was asked to run the next refresh, only touched by the timer */
+    private long scheduledAt;
+
+    StatsPage(ServiceRouter router, String path) {
+        this.router = router;
+        this.path = path;
+    }
+
+    void start() {
+        refresh(0);
+    }
+
+    public boolean matches(String uri) {
+        String p = new QueryStringDecoder(uri).getPath();
+        return p.equals(path) || p.equals(path + PROMETHEUS_PATH);
+    }
+
+    public void handle(HttpRequest request, HttpResponse response) {
+        String p = new QueryStringDecoder(request.getUri()).getPath();
+        boolean isPrometheus = p.equals(path + PROMETHEUS_PATH);
+        ChannelBuffer content = isPrometheus ? prometheus : json;
+        if (content == null) {
+            response.setStatus(HttpResponseStatus.SERVICE_UNAVAILABLE);
+            response.setContent(ChannelBuffers.copiedBuffer("Stats not available", CharsetUtil.UTF_8));
+            return;
+        }
+
+        response.setHeader(HttpHeaders.Names.CONTENT_TYPE, isPrometheus ? CONTENT_TYPE_PROMETHEUS : CONTENT_TYPE_JSON);
+        response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
+        response.setContent(content.duplicate());
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        refresh(Math.max(0, System.currentTimeMillis() - scheduledAt - router.getStatsInterval()));
+    }
+
+    private void refresh(long timerLag) {
+        if (router.getStatsPage() != this) {
+            // Replaced by a page on another path
+            return;
+        }
+
+        try {
+            Stats stats = new Stats(router, timerLag);
+            json = ChannelBuffers.unmodifiableBuffer(renderJson(stats));
+            prometheus = ChannelBuffers.unmodifiableBuffer(renderPrometheus(stats));
+        } catch (Exception e) {
+            logger.warn("Failed to render stats", e);
+        }
+
+        scheduledAt = System.currentTimeMillis();
+        router.getTimer().newTimeout(this, router.getStatsInterval(), TimeUnit.MILLISECONDS);
+    }
+
+    /** Everything read once per refresh, for both formats to render the same values */
+    private static class Stats {
+        final long timestamp = System.currentTimeMillis();
+        final long timerPending;
+        final long timerLag;
+        final List<EventLoopMonitor.WorkerLag> eventLoopLags;
+        final List<ServiceStats> services = new ArrayList<ServiceStats>();
+        final SortedMap<String, Counter> counters;
+        final SortedMap<String, Object> gauges = new TreeMap<String, Object>();
+        final SortedMap<String, Meter> meters;
+        final SortedMap<String, Histogram> histograms;
+        final SortedMap<String, Timer> timers;
+        final Map<String, Snapshot> snapshots = new TreeMap<String, Snapshot>();
+
+        Stats(ServiceRouter router, long timerLag) {
+            this.timerPending = router.getTimer().getPending();
+            this.timerLag = timerLag;
+            this.eventLoopLags = router.getEventLoopMonitor().getLags();
+            for (Service service : router.getServices()) {
+                services.add(new ServiceStats(service));
+            }
+
+            MetricRegistry registry = router.getMetricRegistry();
+            counters = registry.getCounters();
+            for (Map.Entry<String, ?> entry : registry.getGauges().entrySet()) {
+                gauges.put(entry.getKey(), ((Gauge<?>) entry.getValue()).getValue());
+            }
+            meters = registry.getMeters();
+            histograms = registry.getHistograms();
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+            }
+            timers = registry.getTimers();
+            for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+                snapshots.put(entry.getKey(), entry.getValue().getSnapshot());
+            }
+        }
+    }
+
+    private static class ServiceStats {
+        final String url;
+        final Map<SessionHandler.State, Integer> sessions =
+                new EnumMap<SessionHandler.State, Integer>(SessionHandler.State.class);
+        final long queuedMessages;
+        final long queuedBytes;
+        final List<HeavySessions.SessionTraffic> heaviest;
+
+        ServiceStats(Service service) {
+            url = service.getUrl();
+            for (SessionHandler.State state : SessionHandler.State.values()) {
+                sessions.put(state, 0);
+            }
+            for (SessionHandler session : service.getSessions()) {
+                SessionHandler.State state = session.getState();
+                sessions.put(state, sessions.get(state) + 1);
+            }
+            queuedMessages = service.getMetrics().getQueuedMessages();
+            queuedBytes = service.getMetrics().getQueuedBytes();
+            heaviest = service.getHeaviestSessions();
+        }
+    }
+
+    private static ChannelBuffer renderJson(Stats stats) throws IOException {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer(16 * 1024);
+        JsonGenerator g = JSON_FACTORY.createJsonGenerator(new ChannelBufferOutputStream(buffer), JsonEncoding.UTF8);
+        g.writeStartObject();
+        g.writeNumberField("timestamp", stats.timestamp);
+
+        g.writeObjectFieldStart("timer");
+        g.writeNumberField("pending", stats.timerPending);
+        g.writeNumberField("lag", stats.timerLag);
+        g.writeEndObject();
+
+        // Lag of the last probe of each I/O worker, in microseconds
+        g.writeArrayFieldStart("eventLoop");
+        for (EventLoopMonitor.WorkerLag lag : stats.eventLoopLags) {
+            g.writeStartObject();
+            g.writeStringField("worker", lag.getWorker());
+            g.writeNumberField("lag", lag.getLag());
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+
+        g.writeArrayFieldStart("services");
+        for (ServiceStats service : stats.services) {
+            g.writeStartObject();
+            g.writeStringField("url", service.url);
+            g.writeObjectFieldStart("sessions");
+            for (Map.Entry<SessionHandler.State, Integer> entry : service.sessions.entrySet()) {
+                g.writeNumberField(entry.getKey().name(), entry.getValue());
+            }
+            g.writeEndObject();
+            g.writeNumberField("queuedMessages", service.queuedMessages);
+            g.writeNumberField("queuedBytes", service.queuedBytes);
+            g.writeArrayFieldStart("heaviestSessions");
+            for (HeavySessions.SessionTraffic traffic : service.heaviest) {
+                g.writeStartObject();
+                g.writeStringField("idHash", hashId(traffic.getId()));
+                g.writeNumberField("intervalBytes", traffic.getIntervalBytes());
+                g.writeNumberField("bytesReceived", traffic.getBytesReceived());
+                g.writeNumberField("messagesReceived", traffic.getMessagesReceived());
+                g.writeNumberField("bytesSent", traffic.getBytesSent());
+                g.writeNumberField("messagesSent", traffic.getMessagesSent());
+                g.writeNumberField("reconnects", traffic.getReconnects());
+                g.writeNumberField("lastActivity", traffic.getLastActivity());
+                g.writeEndObject();
+            }
+            g.writeEndArray();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+
+        g.writeObjectFieldStart("counters");
+        for (Map.Entry<String, Counter> entry : stats.counters.entrySet()) {
+            g.writeNumberField(entry.getKey(), entry.getValue().getCount());
+        }
+        g.writeEndObject();
+
+        g.writeObjectFieldStart("gauges");
+        for (Map.Entry<String, Object> entry : stats.gauges.entrySet()) {
+            Object value = entry.getValue();
+            g.writeFieldName(entry.getKey());
+            if (value instanceof Long || value instanceof Integer) {
+                g.writeNumber(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                g.writeNumber(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                g.writeBoolean((Boolean) value);
+            } else if (value == null) {
+                g.writeNull();
+            } else {
+                g.writeString(value.toString());
+            }
+        }
+        g.writeEndObject();
+
+        g.writeObjectFieldStart("meters");
+        for (Map.Entry<String, Meter> entry : stats.meters.entrySet()) {
+            g.writeObjectFieldStart(entry.getKey());
+            writeRates(g, entry.getValue());
+            g.writeEndObject();
+        }
+        g.writeEndObject();
+
+        g.writeObjectFieldStart("histograms");
+        for (Map.Entry<String, Histogram> entry : stats.histograms.entrySet()) {
+            g.writeObjectFieldStart(entry.getKey());
+            g.writeNumberField("count", entry.getValue().getCount());
+            writeSnapshot(g, stats.snapshots.get(entry.getKey()));
+            g.writeEndObject();
+        }
+        g.writeEndObject();
+
+        // Durations of timers are in nanoseconds
+        g.writeObjectFieldStart("timers");
+        for (Map.Entry<String, Timer> entry : stats.timers.entrySet()) {
+            g.writeObjectFieldStart(entry.getKey());
+            writeRates(g, entry.getValue());
+            writeSnapshot(g, stats.snapshots.get(entry.getKey()));
+            g.writeEndObject();
+        }
+        g.writeEndObject();
+
+        g.writeEndObject();
+        g.close();
+        return buffer;
+    }
+
+    /** @return First 8 bytes of the SHA-256 of the salted id, in hex */
+    private static String hashId(String id) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(ID_SALT);
+            byte[] digest = md.digest(id.getBytes(CharsetUtil.UTF_8));
+            StringBuilder sb = new StringBuilder(16);
+            for (int i = 0; i < 8; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xf, 16)).append(Character.forDigit(digest[i] & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static void writeRates(JsonGenerator g, Metered metered) throws IOException {
+        g.writeNumberField("count", metered.getCount());
+        g.writeNumberField("meanRate", metered.getMeanRate());
+        g.writeNumberField("m1Rate", metered.getOneMinuteRate());
+        g.writeNumberField("m5Rate", metered.getFiveMinuteRate());
+        g.writeNumberField("m15Rate", metered.getFifteenMinuteRate());
+    }
+
+    private static void writeSnapshot(JsonGenerator g, Snapshot snapshot) throws IOException {
+        g.writeNumberField("min", snapshot.getMin());
+        g.writeNumberField("max", snapshot.getMax());
+        g.writeNumberField("mean", snapshot.getMean());
+        g.writeNumberField("stddev", snapshot.getStdDev());
+        g.writeNumberField("p50", snapshot.getMedian());
+        g.writeNumberField("p75", snapshot.get75thPercentile());
+        g.writeNumberField("p95", snapshot.get95thPercentile());
+        g.writeNumberField("p99", snapshot.get99thPercentile());
+        g.writeNumberField("p999", snapshot.get999thPercentile());
+    }
+
+    private static ChannelBuffer renderPrometheus(Stats stats) {
+        StringBuilder sb = new StringBuilder(16 * 1024);
+
+        type(sb, "sockjs_timer_pending_timeouts", "gauge");
+        sample(sb, "sockjs_timer_pending_timeouts", null, stats.timerPending);
+        type(sb, "sockjs_timer_lag_seconds", "gauge");
+        sample(sb, "sockjs_timer_lag_seconds", null, stats.timerLag / 1000.0);
+
+        type(sb, "sockjs_event_loop_lag_seconds", "gauge");
+        for (EventLoopMonitor.WorkerLag lag : stats.eventLoopLags) {
+            sample(sb, "sockjs_event_loop_lag_seconds", "worker=\"" + escape(lag.getWorker()) + "\"",
+                    lag.getLag() / 1000000.0);
+        }
+
+        type(sb, "sockjs_sessions", "gauge");
+        for (ServiceStats service : stats.services) {
+            for (Map.Entry<SessionHandler.State, Integer> entry : service.sessions.entrySet()) {
+                sample(sb, "sockjs_sessions", "service=\"" + escape(service.url) + "\",state=\"" +
+                        entry.getKey().name().toLowerCase() + "\"", entry.getValue());
+            }
+        }
+
+        // Counters can go down, open connections for one, so they are gauges to Prometheus
+        for (Map.Entry<String, Counter> entry : stats.counters.entrySet()) {
+            String name = name(entry.getKey());
+            type(sb, name, "gauge");
+            sample(sb, name, null, entry.getValue().getCount());
+        }
+
+        for (Map.Entry<String, Object> entry : stats.gauges.entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Number || value instanceof Boolean) {
+                String name = name(entry.getKey());
+                type(sb, name, "gauge");
+                sample(sb, name, null, value instanceof Boolean ? ((Boolean) value ? 1 : 0) : ((Number) value).doubleValue());
+            }
+        }
+
+        for (Map.Entry<String, Meter> entry : stats.meters.entrySet()) {
+            String name = name(entry.getKey()) + "_total";
+            type(sb, name, "counter");
+            sample(sb, name, null, entry.getValue().getCount());
+        }
+
+        for (Map.Entry<String, Histogram> entry : stats.histograms.entrySet()) {
+            summary(sb, name(entry.getKey()), entry.getValue().getCount(), stats.snapshots.get(entry.getKey()), 1.0);
+        }
+
+        for (Map.Entry<String, Timer> entry : stats.timers.entrySet()) {
+            summary(sb, name(entry.getKey()) + "_seconds", entry.getValue().getCount(),
+                    stats.snapshots.get(entry.getKey()), 1.0 / TimeUnit.SECONDS.toNanos(1));
+        }
+
+        return ChannelBuffers.copiedBuffer(sb, CharsetUtil.UTF_8);
+    }
+
+    private static void summary(StringBuilder sb, String name, long count, Snapshot snapshot, double scale) {
+        type(sb, name, "summary");
+        for (double quantile : QUANTILES) {
+            sample(sb, name, "quantile=\"" + quantile + "\"", snapshot.getValue(quantile) * scale);
+        }
+        sample(sb, name + "_sum", null, snapshot.getMean() * count * scale);
+        sample(sb, name + "_count", null, count);
+    }
+
+    private static void type(StringBuilder sb, String name, String type) {
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (labels != null) {
+            sb.append('{').append(labels).append('}');
+        }
+        sb.append(' ');
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    /** @return Metric name with the characters Prometheus does not allow replaced by underscores */
+    private static String name(String name) {
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            boolean isAllowed = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_' || c == ':' ||
+                    (i > 0 && c >= '0' && c <= '9');
+            sb.append(isAllowed ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,55 @@
+package com.cgbystrom.sockjs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps the last traces in memory, the default TraceSink. Recording claims a slot with a single atomic
+ * increment and overwrites whatever trace was there, so the I/O workers never wait for each other.
+ */
+public class TraceRing implements TraceSink {
+    private final AtomicReferenceArray<MessageTrace> slots;
+    private final int mask;
+    private final AtomicLong recorded = new AtomicLong();
+
+    /**
+     * @param size Traces kept, rounded up to a power of two
+     */
+    public TraceRing(int size) {
+        int capacity = 1;
+        while (capacity < size) {
+            capacity <<= 1;
+        }
+        slots = new AtomicReferenceArray<MessageTrace>(capacity);
+        mask = capacity - 1;
+    }
+
+    @Override
+    public void record(MessageTrace trace) {
+        slots.set((int) (recorded.getAndIncrement() & mask), trace);
+    }
+
+    /** @return Traces recorded since the start, including those overwritten since */
+    public long getRecorded() {
+        return recorded.get();
+    }
+
+    /**
+     * @return The last traces, oldest first. Traces recorded while copying may be missing or
+     *         take the place of older ones.
+     */
+    public List<MessageTrace> getTraces() {
+        final long end = recorded.get();
+        final long start = Math.max(0, end - slots.length());
+        final List<MessageTrace> traces = new ArrayList<MessageTrace>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            final MessageTrace trace = slots.get((int) (i & mask));
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        return traces;
+    }
+}
@@ -0,0 +1,8 @@
+package com.cgbystrom.sockjs;
+
+/**
+ * Receives the traces of sampled messages. Called on the I/O workers, so it should not block.
+ */
+public interface TraceSink {
+    void record(MessageTrace trace);
+}
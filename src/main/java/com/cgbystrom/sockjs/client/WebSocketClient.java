@@ -14,6 +14,7 @@ import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
 import org.jboss.netty.handler.codec.http.websocketx.WebSocketVersion;
+import org.jboss.netty.util.CharsetUtil;
 
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -128,6 +129,12 @@ public class WebSocketClient extends SockJsClient implements Session {
         channel.write(new TextWebSocketFrame(cb));
     }
 
+    /** SockJS only carries text, so this sends the message decoded as UTF-8 */
+    @Override
+    public void send(ChannelBuffer message) {
+        send(message.toString(CharsetUtil.UTF_8));
+    }
+
     @Override
     public void close() {
         disconnect();
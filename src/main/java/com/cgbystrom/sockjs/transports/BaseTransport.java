@@ -1,5 +1,6 @@
 package com.cgbystrom.sockjs.transports;
 
+import com.cgbystrom.sockjs.Service;
 import com.cgbystrom.sockjs.SessionHandler;
 import com.cgbystrom.sockjs.Frame;
 import org.jboss.netty.buffer.ChannelBuffer;
@@ -12,9 +13,10 @@ import org.jboss.netty.handler.timeout.IdleStateEvent;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.util.CharsetUtil;
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
 
-import java.util.Set;
+import java.util.List;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
 
 public class BaseTransport extends IdleStateAwareChannelHandler {
     public static final String CONTENT_TYPE_JAVASCRIPT = "application/javascript; charset=UTF-8";
@@ -23,35 +25,102 @@ public class BaseTransport extends IdleStateAwareChannelHandler {
     public static final String CONTENT_TYPE_HTML = "text/html; charset=UTF-8";
 
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(BaseTransport.class);
-    private static final CookieDecoder COOKIE_DECODER = new CookieDecoder();
     private static final String JSESSIONID = "JSESSIONID";
-    private static final String DEFAULT_COOKIE = "JSESSIONID=dummy; path=/";
-
-    protected String cookie = DEFAULT_COOKIE;
+    private static final String COOKIE_PREFIX = JSESSIONID + "=";
+    private static final String COOKIE_SUFFIX = "; path=/";
+    private static final String DEFAULT_COOKIE = COOKIE_PREFIX + "dummy" + COOKIE_SUFFIX;
+    /** Last Set-Cookie value sent on a channel, reused for as long as the client sends the same JSESSIONID */
+    private static final ChannelLocal<String> LAST_COOKIE = new ChannelLocal<String>(true);
+
+    /** Set-Cookie header value for the current request, null unless the service needs cookies */
+    protected String cookie;
+    protected Service service;
     protected TransportMetrics transportMetrics;
 
     /** Save a reference to the initating HTTP request */
     protected HttpRequest request;
 
-    public BaseTransport(TransportMetrics transportMetrics) {
+    public BaseTransport(Service service, TransportMetrics transportMetrics) {
+        this.service = service;
         this.transportMetrics = transportMetrics;
     }
 
     public static void respond(Channel channel, HttpResponseStatus status, String message) throws Exception {
+        respond(channel, null, status, message);
+    }
+
+    /**
+     * Respond to the given request, keeping the connection open if the client asked for it.
+     * A null request always closes the connection after the response has been written.
+     */
+    public static void respond(Channel channel, HttpRequest request, HttpResponseStatus status, String message) throws Exception {
         // TODO: Why aren't response data defined in SockJS for error messages?
-        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_0, status);
+        final HttpVersion version = request == null ? HttpVersion.HTTP_1_0 : request.getProtocolVersion();
+        final boolean keepAlive = request != null && HttpHeaders.isKeepAlive(request);
+        HttpResponse response = new DefaultHttpResponse(version, status);
         response.setHeader(CONTENT_TYPE, "text/plain; charset=UTF-8");
 
         final ChannelBuffer buffer = ChannelBuffers.copiedBuffer(message, CharsetUtil.UTF_8);
         response.setContent(buffer);
         response.setHeader(CONTENT_LENGTH, buffer.readableBytes());
-        response.setHeader(SET_COOKIE, "JSESSIONID=dummy; path=/"); // FIXME: Don't sprinkle cookies in every request
         response.setHeader(CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
         response.setHeader("Access-Control-Allow-Origin", "*");
         response.setHeader("Access-Control-Allow-Credentials", "true");
+        HttpHeaders.setKeepAlive(response, keepAlive);
+
+        if (channel.isWritable()) {
+            ChannelFuture future = channel.write(response);
+            if (!keepAlive) {
+                future.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+    }
 
-        if (channel.isWritable())
-            channel.write(response).addListener(ChannelFutureListener.CLOSE);
+    /**
+     * Callbacks of htmlfile and jsonp end up in a script as is, so only names made of
+     * letters, digits and "_", "-" or "." are accepted.
+     */
+    protected static boolean isValidCallback(String callback) {
+        if (callback.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < callback.length(); i++) {
+            final char ch = callback.charAt(i);
+            if (!(ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9' ||
+                    ch == '_' || ch == '-' || ch == '.')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a transport, its idle handler and the session handler following it from the pipeline once its response is done.
+     * This unbinds the session from the channel and, for persistent connections, lets the next request
+     * on the same channel be routed from scratch by the ServiceRouter.
+     * Call it before writing the response, the client may send its next request as soon as it has it.
+     */
+    public static void resetPipeline(ChannelPipeline pipeline, ChannelHandler transport, TransportMetrics transportMetrics) {
+        // The pipeline locks on itself when changed, so no other request gets routed in between
+        synchronized (pipeline) {
+            final ChannelHandlerContext ctx = pipeline.getContext(transport);
+            if (ctx == null) {
+                return;
+            }
+            // Only the handlers next to the transport were added along with it
+            final List<String> names = pipeline.getNames();
+            final int index = names.indexOf(ctx.getName());
+            final String sessionHandler = index + 1 < names.size() ? names.get(index + 1) : null;
+            pipeline.remove(transport);
+            if (index > 0 && names.get(index - 1).equals(IdlePolicies.HANDLER_NAME)) {
+                pipeline.remove(IdlePolicies.HANDLER_NAME);
+            }
+            if (sessionHandler != null && pipeline.get(sessionHandler) instanceof SessionHandler) {
+                pipeline.remove(sessionHandler);
+            }
+        }
+        // We will no longer see the disconnect of this channel, so account for it here.
+        transportMetrics.connectionsOpen.dec();
     }
 
     @Override
@@ -74,7 +143,9 @@ public class BaseTransport extends IdleStateAwareChannelHandler {
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         request = (HttpRequest) e.getMessage();
-        handleCookie(request);
+        if (service.isCookieNeeded()) {
+            handleCookie(e.getChannel(), request);
+        }
 
         // Since we have silenced the usual channel state events for open and connected for the socket,
         // we must notify handlers downstream to now consider this connection connected.
@@ -85,7 +156,8 @@ public class BaseTransport extends IdleStateAwareChannelHandler {
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         if (e.getCause() instanceof SessionHandler.NotFoundException) {
-            respond(e.getChannel(), HttpResponseStatus.NOT_FOUND, "Session not found.");
+            resetPipeline(ctx.getPipeline(), this, transportMetrics);
+            respond(e.getChannel(), request, HttpResponseStatus.NOT_FOUND, "Session not found.");
         } else if (e.getCause() instanceof SessionHandler.LockException) {
             if (e.getChannel().isWritable()) {
                 e.getChannel().write(Frame.closeFrame(2010, "Another connection still open")).addListener(ChannelFutureListener.CLOSE);
@@ -95,6 +167,18 @@ public class BaseTransport extends IdleStateAwareChannelHandler {
         }
     }
 
+    /**
+     * Close a connection the idle policy of the transport has given up on. The close goes straight down
+     * the pipeline, as a stuck connection would never finish writing a proper end to its response.
+     */
+    protected void reap(ChannelHandlerContext ctx, IdleStateEvent e) {
+        if (logger.isDebugEnabled())
+            logger.debug("Closing " + e.getChannel() + ", " + e.getState() + " for " +
+                    (System.currentTimeMillis() - e.getLastActivityTimeMillis()) + " ms");
+        transportMetrics.connectionsReaped.mark();
+        Channels.close(ctx, Channels.future(e.getChannel()));
+    }
+
     protected HttpResponse createResponse(String contentType) {
         final HttpVersion version = request.getProtocolVersion();
         HttpResponse response = new DefaultHttpResponse(version, HttpResponseStatus.OK);
@@ -102,24 +186,66 @@ public class BaseTransport extends IdleStateAwareChannelHandler {
         response.setHeader(CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
         response.setHeader("Access-Control-Allow-Origin", "*");
         response.setHeader("Access-Control-Allow-Credentials", "true");
-        response.setHeader(SET_COOKIE, cookie); // FIXME: Check if cookies are enabled
+        if (cookie != null) {
+            response.setHeader(SET_COOKIE, cookie);
+        }
         return response;
     }
 
-    protected void handleCookie(HttpRequest request) {
-        // FIXME: Check if cookies are enabled in the server
+    /**
+     * Echo the JSESSIONID sent by the client (or a dummy one) back, for the benefit of sticky load balancers.
+     * Scans the Cookie header once, only allocating a new Set-Cookie value when the id has changed.
+     */
+    protected void handleCookie(Channel channel, HttpRequest request) {
         cookie = DEFAULT_COOKIE;
         String cookieHeader = request.getHeader(COOKIE);
-        if (cookieHeader != null) {
-            Set<Cookie> cookies = COOKIE_DECODER.decode(cookieHeader);
-            for (Cookie c : cookies) {
-                if (c.getName().equals(JSESSIONID)) {
-                    c.setPath("/");
-                    CookieEncoder cookieEncoder = new CookieEncoder(true);
-                    cookieEncoder.addCookie(c);
-                    cookie = cookieEncoder.encode();
+        if (cookieHeader == null) {
+            return;
+        }
+
+        int valueStart = -1;
+        int valueEnd = -1;
+        final int length = cookieHeader.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && (cookieHeader.charAt(i) == ' ' || cookieHeader.charAt(i) == ';')) {
+                i++;
+            }
+            final int nameStart = i;
+            while (i < length && cookieHeader.charAt(i) != '=' && cookieHeader.charAt(i) != ';') {
+                i++;
+            }
+            final boolean isSessionId = i - nameStart == JSESSIONID.length() &&
+                    cookieHeader.regionMatches(nameStart, JSESSIONID, 0, JSESSIONID.length());
+            if (i < length && cookieHeader.charAt(i) == '=') {
+                final int start = ++i;
+                while (i < length && cookieHeader.charAt(i) != ';') {
+                    i++;
+                }
+                if (isSessionId) {
+                    // Last one wins, just like the CookieDecoder
+                    valueStart = start;
+                    valueEnd = i;
                 }
             }
         }
+
+        if (valueStart < 0) {
+            return;
+        }
+        while (valueEnd > valueStart && cookieHeader.charAt(valueEnd - 1) == ' ') {
+            valueEnd--;
+        }
+
+        final int valueLength = valueEnd - valueStart;
+        final String lastCookie = LAST_COOKIE.get(channel);
+        if (lastCookie != null && lastCookie.length() == COOKIE_PREFIX.length() + valueLength + COOKIE_SUFFIX.length() &&
+                lastCookie.regionMatches(COOKIE_PREFIX.length(), cookieHeader, valueStart, valueLength)) {
+            cookie = lastCookie;
+            return;
+        }
+
+        cookie = COOKIE_PREFIX + cookieHeader.substring(valueStart, valueEnd) + COOKIE_SUFFIX;
+        LAST_COOKIE.set(channel, cookie);
     }
 }
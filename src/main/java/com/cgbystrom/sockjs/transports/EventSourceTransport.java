@@ -1,6 +1,7 @@
 package com.cgbystrom.sockjs.transports;
 
 import com.cgbystrom.sockjs.Frame;
+import com.cgbystrom.sockjs.MessageTrace;
 import com.cgbystrom.sockjs.Service;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -13,12 +14,34 @@ import org.jboss.netty.util.CharsetUtil;
 public class EventSourceTransport extends StreamingTransport {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(EventSourceTransport.class);
     private static final ChannelBuffer NEW_LINE = ChannelBuffers.copiedBuffer("\r\n", CharsetUtil.UTF_8);
+    private static final ChannelBuffer ID_BEGIN = ChannelBuffers.copiedBuffer("id: ", CharsetUtil.UTF_8);
     private static final ChannelBuffer FRAME_BEGIN = ChannelBuffers.copiedBuffer("data: ", CharsetUtil.UTF_8);
     private static final ChannelBuffer FRAME_END = ChannelBuffers.copiedBuffer("\r\n\r\n", CharsetUtil.UTF_8);
     private static final String CONTENT_TYPE_EVENT_STREAM = "text/event-stream; charset=UTF-8";
+    private static final String LAST_EVENT_ID = "Last-Event-ID";
 
-    public EventSourceTransport(Service.Metrics metrics, int maxResponseSize) {
-        super(metrics.getEventSource(), maxResponseSize);
+    /** Id of the last event the client got before reconnecting, -1 if it did not send one */
+    private long lastEventId = -1;
+
+    public EventSourceTransport(Service service) {
+        super(service, service.getMetrics().getEventSource());
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final String lastEventIdHeader = ((HttpRequest) e.getMessage()).getHeader(LAST_EVENT_ID);
+        if (lastEventIdHeader != null) {
+            try {
+                lastEventId = Long.parseLong(lastEventIdHeader.trim());
+            } catch (NumberFormatException ex) {
+                lastEventId = -1;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    public long getLastEventId() {
+        return lastEventId;
     }
 
     @Override
@@ -28,11 +51,16 @@ public class EventSourceTransport extends StreamingTransport {
             if (headerSent.compareAndSet(false, true)) {
                 HttpResponse response = createResponse(CONTENT_TYPE_EVENT_STREAM);
                 ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), response, e.getRemoteAddress()));
-                ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), new DefaultHttpChunk(NEW_LINE), e.getRemoteAddress()));
+                writeChunk(ctx, e, e.getFuture(), NEW_LINE);
             }
 
-            ChannelBuffer wrappedContent = ChannelBuffers.wrappedBuffer(FRAME_BEGIN, Frame.encode(frame, false), FRAME_END);
-            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), new DefaultHttpChunk(wrappedContent), e.getRemoteAddress()));
+            final long eventId = frame instanceof Frame.MessageFrame ? ((Frame.MessageFrame) frame).getEventId() : 0;
+            ChannelBuffer wrappedContent = eventId == 0 ?
+                    ChannelBuffers.wrappedBuffer(FRAME_BEGIN, Frame.encode(frame, false), FRAME_END) :
+                    ChannelBuffers.wrappedBuffer(ID_BEGIN, ChannelBuffers.copiedBuffer(Long.toString(eventId), CharsetUtil.US_ASCII),
+                            NEW_LINE, FRAME_BEGIN, Frame.encode(frame, false), FRAME_END);
+            frame.traceStage(MessageTrace.Stage.WRAPPED);
+            writeChunk(ctx, e, e.getFuture(), wrappedContent);
             logResponseSize(e.getChannel(), wrappedContent);
         } else {
             super.writeRequested(ctx, e);
@@ -0,0 +1,308 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Reservoir counting values into log-linear buckets, the way HdrHistogram does, instead of sampling them.
+ *
+ * Every I/O thread updates the histograms of message sizes on each write, so the default reservoir with
+ * its lock and sorted sample map is contended by all of them. Here each thread counts into one of a few
+ * stripes of buckets, with a single atomic add and no allocation, and the stripes are only merged when a
+ * snapshot is taken.
+ *
+ * Values are kept to within 1/32 of their magnitude. Like the default reservoir, snapshots favor recent
+ * values: there is a current and a previous set of stripes, and a snapshot merges the two, so it covers
+ * the last one to two windows. Taking a snapshot moves on to a new window once the current one is over,
+ * rather than every update reading the clock, so readers are expected to come by at least once a window.
+ * Negative values count as zero.
+ */
+public class HdrReservoir implements Reservoir {
+    /** Each power of two is split into 32 buckets, below 64 every value has its own */
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int HALF_SUB_BUCKETS = 1 << (SUB_BUCKET_BITS - 1);
+    /** Values from 2^40 (a terabyte, or 12 days in microseconds) on share the last bucket */
+    private static final long MAX_VALUE = (1L << 40) - 1;
+    private static final int BUCKETS = index(MAX_VALUE) + 1;
+    /** Slots after the buckets of each stripe */
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+    private static final int STRIPE_LENGTH = BUCKETS + 2;
+    private static final int STRIPES = stripes();
+    public static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private final long window;
+    /**
+     * Stripes of the current and the previous window. Each is allocated once a thread hashing
+     * to it updates the reservoir, most are only updated by a few.
+     */
+    private volatile AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+    private volatile AtomicReferenceArray<AtomicLongArray> previousStripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+    private long windowStart = System.nanoTime();
+
+    public HdrReservoir() {
+        this(DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window Nanoseconds values are kept for, at least
+     */
+    public HdrReservoir(long window) {
+        this.window = window;
+    }
+
+    /**
+     * @return The histogram by that name, registered with an HdrReservoir unless another histogram was there first
+     */
+    public static Histogram histogram(MetricRegistry registry, String name) {
+        try {
+            return registry.register(name, new Histogram(new HdrReservoir()));
+        } catch (IllegalArgumentException e) {
+            // Services sharing a registry share their metrics
+            return registry.histogram(name);
+        }
+    }
+
+    private static int stripes() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        int stripes = 1;
+        while (stripes < processors * 2 && stripes < 16) {
+            stripes <<= 1;
+        }
+        return stripes;
+    }
+
+    private static int index(long value) {
+        final int bucket = Math.max(0, 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return bucket * HALF_SUB_BUCKETS + (int) (value >>> bucket);
+    }
+
+    /** @return Middle of the range of values counted into a bucket */
+    private static long valueOf(int index) {
+        if (index < 2 * HALF_SUB_BUCKETS) {
+            return index;
+        }
+        final int bucket = index / HALF_SUB_BUCKETS - 1;
+        final long lowest = (long) (index - bucket * HALF_SUB_BUCKETS) << bucket;
+        return lowest + ((1L << bucket) >> 1);
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.min(Integer.MAX_VALUE, getSnapshot().count);
+    }
+
+    @Override
+    public void update(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        final AtomicLongArray stripe = stripe(stripes, (int) Thread.currentThread().getId() & (STRIPES - 1));
+        stripe.incrementAndGet(index(Math.min(value, MAX_VALUE)));
+        stripe.addAndGet(SUM, value);
+        long max;
+        while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+            // Retry, only happens while the max is still growing
+        }
+    }
+
+    private static AtomicLongArray stripe(AtomicReferenceArray<AtomicLongArray> stripes, int i) {
+        AtomicLongArray stripe = stripes.get(i);
+        if (stripe == null) {
+            stripes.compareAndSet(i, null, new AtomicLongArray(STRIPE_LENGTH));
+            stripe = stripes.get(i);
+        }
+        return stripe;
+    }
+
+    /** Moves on to a new window once the current one is over, dropping the previous one */
+    private synchronized void rotate() {
+        final long now = System.nanoTime();
+        if (now - windowStart >= window) {
+            previousStripes = stripes;
+            stripes = new AtomicReferenceArray<AtomicLongArray>(STRIPES);
+            windowStart = now;
+        }
+    }
+
+    @Override
+    public HdrSnapshot getSnapshot() {
+        rotate();
+        final long[] counts = new long[BUCKETS];
+        // Count, sum and max of both windows
+        final long[] totals = new long[3];
+        merge(previousStripes, counts, totals);
+        merge(stripes, counts, totals);
+        return new HdrSnapshot(counts, totals[0], totals[1], totals[2]);
+    }
+
+    private static void merge(AtomicReferenceArray<AtomicLongArray> stripes, long[] counts, long[] totals) {
+        for (int i = 0; i < STRIPES; i++) {
+            final AtomicLongArray stripe = stripes.get(i);
+            if (stripe == null) {
+                continue;
+            }
+            for (int j = 0; j < BUCKETS; j++) {
+                final long c = stripe.get(j);
+                counts[j] += c;
+                totals[0] += c;
+            }
+            totals[1] += stripe.get(SUM);
+            totals[2] = Math.max(totals[2], stripe.get(MAX));
+        }
+    }
+
+    /**
+     * Snapshot answering from the merged bucket counts. Quantiles are the middle of their bucket,
+     * and getValues() has one value per bucket that has any.
+     */
+    public static class HdrSnapshot extends Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private HdrSnapshot(long[] counts, long count, long sum, long max) {
+            super(new long[0]);
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (count == 0) {
+                return 0.0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(valueOf(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(Integer.MAX_VALUE, count);
+        }
+
+        @Override
+        public double getMedian() {
+            return getValue(0.5);
+        }
+
+        @Override
+        public double get75thPercentile() {
+            return getValue(0.75);
+        }
+
+        @Override
+        public double get95thPercentile() {
+            return getValue(0.95);
+        }
+
+        @Override
+        public double get98thPercentile() {
+            return getValue(0.98);
+        }
+
+        @Override
+        public double get99thPercentile() {
+            return getValue(0.99);
+        }
+
+        @Override
+        public double get999thPercentile() {
+            return getValue(0.999);
+        }
+
+        @Override
+        public long[] getValues() {
+            int buckets = 0;
+            for (long c : counts) {
+                if (c > 0) {
+                    buckets++;
+                }
+            }
+            final long[] values = new long[buckets];
+            int j = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    values[j++] = Math.min(valueOf(i), max);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public long getMin() {
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    return Math.min(valueOf(i), max);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (count <= 1) {
+                return 0.0;
+            }
+            final double mean = getMean();
+            double squares = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    final double diff = Math.min(valueOf(i), max) - mean;
+                    squares += diff * diff * counts[i];
+                }
+            }
+            return Math.sqrt(squares / (count - 1));
+        }
+
+        /** Writes a line with value and count per bucket that has any */
+        @Override
+        public void dump(OutputStream output) {
+            final PrintWriter out = new PrintWriter(output);
+            try {
+                for (int i = 0; i < counts.length; i++) {
+                    if (counts[i] > 0) {
+                        out.printf("%d\t%d%n", Math.min(valueOf(i), max), counts[i]);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.cgbystrom.sockjs.transports;
 
 import com.cgbystrom.sockjs.Frame;
+import com.cgbystrom.sockjs.MessageTrace;
 import com.cgbystrom.sockjs.Service;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -10,7 +11,9 @@ import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
 import org.jboss.netty.util.CharsetUtil;
 
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
 
 public class HtmlFileTransport extends StreamingTransport {
@@ -30,12 +33,21 @@ public class HtmlFileTransport extends StreamingTransport {
             "  </script>", CharsetUtil.UTF_8);
     private static final ChannelBuffer PREFIX = ChannelBuffers.copiedBuffer("<script>\np(\"", CharsetUtil.UTF_8);
     private static final ChannelBuffer POSTFIX = ChannelBuffers.copiedBuffer("\");\n</script>\r\n", CharsetUtil.UTF_8);
+    private static final int MAX_CACHED_HEADERS = 64;
+    /** Padded headers by callback. Clients use a handful of callback names, so most responses find theirs here. */
+    private static final Map<String, ChannelBuffer> PADDED_HEADERS = new LinkedHashMap<String, ChannelBuffer>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ChannelBuffer> eldest) {
+            return size() > MAX_CACHED_HEADERS;
+        }
+    };
 
+    private ChannelBuffer paddedHeader;
 
-    private ChannelBuffer header;
-
-    public HtmlFileTransport(Service.Metrics metrics, int maxResponseSize) {
-        super(metrics.getHtmlFile(), maxResponseSize);
+    public HtmlFileTransport(Service service) {
+        super(service, service.getMetrics().getHtmlFile());
     }
 
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
@@ -48,7 +60,11 @@ public class HtmlFileTransport extends StreamingTransport {
             return;
         }
         final String callback = c.get(0);
-        header = ChannelBuffers.wrappedBuffer(HEADER_PART1, ChannelBuffers.copiedBuffer(callback, CharsetUtil.UTF_8), HEADER_PART2);
+        if (!isValidCallback(callback)) {
+            respond(e.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, "invalid \"callback\" parameter");
+            return;
+        }
+        paddedHeader = getPaddedHeader(callback);
 
         super.messageReceived(ctx, e);
     }
@@ -61,23 +77,8 @@ public class HtmlFileTransport extends StreamingTransport {
                 HttpResponse response = createResponse(CONTENT_TYPE_HTML);
                 response.setHeader(CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
 
-                // Safari needs at least 1024 bytes to parse the website. Relevant:
-                //   http://code.google.com/p/browsersec/wiki/Part2#Survey_of_content_sniffing_behaviors
-                int spaces = 1024 - header.readableBytes();
-                ChannelBuffer paddedHeader = ChannelBuffers.buffer(1024 + 50);
-
-                paddedHeader.writeBytes(header);
-                for (int i = 0; i < spaces + 20; i++) {
-                    paddedHeader.writeByte(' ');
-                }
-                paddedHeader.writeByte('\r');
-                paddedHeader.writeByte('\n');
-                // Opera needs one more new line at the start.
-                paddedHeader.writeByte('\r');
-                paddedHeader.writeByte('\n');
-
                 ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), response, e.getRemoteAddress()));
-                ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), new DefaultHttpChunk(paddedHeader), e.getRemoteAddress()));
+                writeChunk(ctx, e, e.getFuture(), paddedHeader);
             }
 
             final ChannelBuffer frameContent = Frame.encode(frame, false);
@@ -85,11 +86,48 @@ public class HtmlFileTransport extends StreamingTransport {
 
             Frame.escapeJson(frameContent, content);
             ChannelBuffer wrappedContent = ChannelBuffers.wrappedBuffer(PREFIX, content, POSTFIX);
-            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), new DefaultHttpChunk(wrappedContent), e.getRemoteAddress()));
+            frame.traceStage(MessageTrace.Stage.WRAPPED);
+            writeChunk(ctx, e, e.getFuture(), wrappedContent);
 
             logResponseSize(e.getChannel(), content);
         } else {
             super.writeRequested(ctx, e);
         }
     }
+
+    /** @return Read-only view of the padded header, with its own reader index */
+    private static ChannelBuffer getPaddedHeader(String callback) {
+        synchronized (PADDED_HEADERS) {
+            ChannelBuffer paddedHeader = PADDED_HEADERS.get(callback);
+            if (paddedHeader == null) {
+                paddedHeader = ChannelBuffers.unmodifiableBuffer(createPaddedHeader(callback));
+                PADDED_HEADERS.put(callback, paddedHeader);
+            }
+            return paddedHeader.duplicate();
+        }
+    }
+
+    private static ChannelBuffer createPaddedHeader(String callback) {
+        final int headerLength = HEADER_PART1.readableBytes() + callback.length() + HEADER_PART2.readableBytes();
+        // Safari needs at least 1024 bytes to parse the website. Relevant:
+        //   http://code.google.com/p/browsersec/wiki/Part2#Survey_of_content_sniffing_behaviors
+        final int spaces = Math.max(0, 1024 - headerLength + 20);
+        ChannelBuffer paddedHeader = ChannelBuffers.buffer(headerLength + spaces + 4);
+
+        paddedHeader.writeBytes(HEADER_PART1, HEADER_PART1.readerIndex(), HEADER_PART1.readableBytes());
+        // Valid callbacks are plain ASCII
+        for (int i = 0; i < callback.length(); i++) {
+            paddedHeader.writeByte(callback.charAt(i));
+        }
+        paddedHeader.writeBytes(HEADER_PART2, HEADER_PART2.readerIndex(), HEADER_PART2.readableBytes());
+        for (int i = 0; i < spaces; i++) {
+            paddedHeader.writeByte(' ');
+        }
+        paddedHeader.writeByte('\r');
+        paddedHeader.writeByte('\n');
+        // Opera needs one more new line at the start.
+        paddedHeader.writeByte('\r');
+        paddedHeader.writeByte('\n');
+        return paddedHeader;
+    }
 }
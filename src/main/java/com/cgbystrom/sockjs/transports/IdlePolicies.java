@@ -0,0 +1,43 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.cgbystrom.sockjs.Service;
+import org.jboss.netty.handler.timeout.IdleStateHandler;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Idle policies of the HTTP transports of a service.
+ *
+ * IdleStateHandler keeps its state in the channel handler context, so one instance per transport kind
+ * is shared by all connections, all of them scheduled on the service timer. The handler is placed right
+ * in front of the transport and leaves the pipeline together with it.
+ *
+ * Streaming responses are sent a heartbeat frame when nothing has been written for a heartbeat interval.
+ * Polls are answered by the session within the hold time, so one that has neither read nor written
+ * anything for the hold time plus a heartbeat interval is stuck.
+ */
+public class IdlePolicies {
+    public static final String HANDLER_NAME = "sockjs-idle";
+
+    private final IdleStateHandler streaming;
+    private final IdleStateHandler polling;
+
+    public IdlePolicies(Service service) {
+        final int heartbeatInterval = service.getHeartbeatInterval();
+        final int pollHoldTimeout = service.getPollHoldTimeout();
+        streaming = heartbeatInterval <= 0 ? null :
+                new IdleStateHandler(service.getTimer(), 0, heartbeatInterval, 0, TimeUnit.MILLISECONDS);
+        polling = heartbeatInterval <= 0 || pollHoldTimeout <= 0 ? null :
+                new IdleStateHandler(service.getTimer(), 0, 0, pollHoldTimeout + heartbeatInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /** @return Handler firing writer idle events, null if heartbeats are disabled */
+    public IdleStateHandler getStreaming() {
+        return streaming;
+    }
+
+    /** @return Handler firing all idle events, null if polls are held until a message arrives */
+    public IdleStateHandler getPolling() {
+        return polling;
+    }
+}
@@ -1,6 +1,7 @@
 package com.cgbystrom.sockjs.transports;
 
 import com.cgbystrom.sockjs.Frame;
+import com.cgbystrom.sockjs.MessageTrace;
 import com.cgbystrom.sockjs.Service;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
@@ -12,13 +13,16 @@ import org.jboss.netty.util.CharsetUtil;
 
 import java.util.List;
 
-public class JsonpPollingTransport extends BaseTransport {
+public class JsonpPollingTransport extends PollingTransport {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(JsonpPollingTransport.class);
     
-    private String jsonpCallback;
+    private static final ChannelBuffer PREFIX = ChannelBuffers.copiedBuffer("(\"", CharsetUtil.UTF_8);
+    private static final ChannelBuffer POSTFIX = ChannelBuffers.copiedBuffer("\");\r\n", CharsetUtil.UTF_8);
 
-    public JsonpPollingTransport(Service.Metrics metrics) {
-        super(metrics.getJsonp());
+    private ChannelBuffer jsonpCallback;
+
+    public JsonpPollingTransport(Service service) {
+        super(service, service.getMetrics().getJsonp());
     }
 
     @Override
@@ -28,10 +32,17 @@ public class JsonpPollingTransport extends BaseTransport {
         QueryStringDecoder qsd = new QueryStringDecoder(request.getUri());
         final List<String> c = qsd.getParameters().get("c");
         if (c == null) {
-            respond(e.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, "\"callback\" parameter required.");
+            resetPipeline(ctx.getPipeline(), this, transportMetrics);
+            respond(e.getChannel(), request, HttpResponseStatus.INTERNAL_SERVER_ERROR, "\"callback\" parameter required.");
+            return;
+        }
+        final String callback = c.get(0);
+        if (!isValidCallback(callback)) {
+            resetPipeline(ctx.getPipeline(), this, transportMetrics);
+            respond(e.getChannel(), request, HttpResponseStatus.INTERNAL_SERVER_ERROR, "invalid \"callback\" parameter");
             return;
         }
-        jsonpCallback = c.get(0);
+        jsonpCallback = ChannelBuffers.copiedBuffer(callback, CharsetUtil.US_ASCII);
 
         super.messageReceived(ctx, e);
     }
@@ -41,19 +52,16 @@ public class JsonpPollingTransport extends BaseTransport {
         if (e.getMessage() instanceof Frame) {
             final Frame frame = (Frame) e.getMessage();
             HttpResponse response = createResponse(CONTENT_TYPE_JAVASCRIPT);
-            response.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.CLOSE);
             response.setHeader(HttpHeaders.Names.CACHE_CONTROL, "no-store, no-cache, must-revalidate, max-age=0");
 
-            ChannelBuffer escapedContent = ChannelBuffers.dynamicBuffer();
-            Frame.escapeJson(Frame.encode(frame, false), escapedContent);
-            String m = jsonpCallback + "(\"" + escapedContent.toString(CharsetUtil.UTF_8) + "\");\r\n";
+            final ChannelBuffer frameContent = Frame.encode(frame, false);
+            final ChannelBuffer escapedContent = ChannelBuffers.dynamicBuffer(frameContent.readableBytes() + 16);
+            Frame.escapeJson(frameContent, escapedContent);
 
-            e.getFuture().addListener(ChannelFutureListener.CLOSE);
-            
-            final ChannelBuffer content = ChannelBuffers.copiedBuffer(m, CharsetUtil.UTF_8);
+            final ChannelBuffer content = ChannelBuffers.wrappedBuffer(jsonpCallback, PREFIX, escapedContent, POSTFIX);
             response.setContent(content);
-            response.setHeader(HttpHeaders.Names.CONTENT_LENGTH, content.readableBytes());
-            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), response, e.getRemoteAddress()));
+            frame.traceStage(MessageTrace.Stage.WRAPPED);
+            writeResponse(ctx, e, response);
             transportMetrics.messagesSent.mark();
             transportMetrics.messagesSentSize.update(content.readableBytes());
         } else {
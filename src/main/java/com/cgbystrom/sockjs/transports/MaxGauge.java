@@ -0,0 +1,65 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Highest value seen during the last one to two windows, so every reporter polling it, however often,
+ * sees the recent peak. Reading never changes the value, the window only moves on with time.
+ * Updates only write when the value is a new peak, which keeps them cheap on hot paths.
+ */
+public class MaxGauge implements Gauge<Long> {
+    public static final long DEFAULT_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private final long window;
+    private final AtomicLong current = new AtomicLong();
+    /** Peak of the window before the current one */
+    private volatile long previous;
+    private long windowStart = System.nanoTime();
+
+    /**
+     * @param window Nanoseconds values are kept for, at least
+     */
+    public MaxGauge(long window) {
+        this.window = window;
+    }
+
+    /**
+     * @return The gauge by that name, registered unless another service sharing the registry did so first
+     */
+    public static MaxGauge gauge(MetricRegistry registry, String name) {
+        try {
+            return registry.register(name, new MaxGauge(DEFAULT_WINDOW));
+        } catch (IllegalArgumentException e) {
+            return (MaxGauge) registry.getGauges().get(name);
+        }
+    }
+
+    public void update(long value) {
+        long current;
+        while (value > (current = this.current.get()) && !this.current.compareAndSet(current, value)) {
+            // Retry, only happens while the peak is still growing
+        }
+    }
+
+    @Override
+    public Long getValue() {
+        rotate();
+        return Math.max(current.get(), previous);
+    }
+
+    /**
+     * Moves on to a new window once the current one is over. Done by readers, which are expected
+     * to come by at least once a window, rather than timing every update.
+     */
+    private synchronized void rotate() {
+        final long now = System.nanoTime();
+        if (now - windowStart >= window) {
+            previous = current.getAndSet(0);
+            windowStart = now;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.cgbystrom.sockjs.Service;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.compression.CompressionException;
+import org.jboss.netty.util.internal.jzlib.JZlib;
+import org.jboss.netty.util.internal.jzlib.ZStream;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * permessage-deflate (RFC 7692) settings and shared zlib state of a service.
+ *
+ * Negotiates the extension during the WebSocket handshake and hands out a PerMessageDeflateHandler
+ * per connection. Without context takeover, every message is compressed on its own, so deflaters
+ * and inflaters are borrowed from pools shared by all connections instead of kept per connection.
+ */
+public class PerMessageDeflate {
+    public static final String EXTENSION = "permessage-deflate";
+    public static final String SEC_WEBSOCKET_EXTENSIONS = "Sec-WebSocket-Extensions";
+
+    static final int MIN_WINDOW_BITS = 9; // zlib cannot deflate with 8
+    static final int MAX_WINDOW_BITS = 15;
+    static final int DEFAULT_MEM_LEVEL = 8;
+    /** Empty stored block ending every sync flush, left out of messages on the wire */
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    private final Service service;
+    private final boolean contextTakeover;
+    private final int windowBits;
+    private final int minSize;
+    private final int maxMemory;
+    /** Pools of deflaters by window bits */
+    private final List<Queue<ZStream>> deflaters = new ArrayList<Queue<ZStream>>(MAX_WINDOW_BITS + 1);
+    private final Queue<ZStream> inflaters = new ConcurrentLinkedQueue<ZStream>();
+
+    public PerMessageDeflate(Service service) {
+        this.service = service;
+        this.contextTakeover = service.isWebSocketCompressionContextTakeover();
+        this.windowBits = Math.max(MIN_WINDOW_BITS, Math.min(MAX_WINDOW_BITS, service.getWebSocketCompressionWindowBits()));
+        this.minSize = service.getWebSocketCompressionMinSize();
+        this.maxMemory = service.getWebSocketCompressionMaxMemory();
+        for (int i = 0; i <= MAX_WINDOW_BITS; i++) {
+            deflaters.add(i < MIN_WINDOW_BITS ? null : new ConcurrentLinkedQueue<ZStream>());
+        }
+    }
+
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /** @return Bytes a message may inflate to */
+    int getMaxMessageSize() {
+        return service.getMaxWebSocketMessageSize();
+    }
+
+    /**
+     * @param extensions Sec-WebSocket-Extensions header of the upgrade request
+     * @return Handler for the first acceptable permessage-deflate offer, null if there is none
+     */
+    public PerMessageDeflateHandler negotiate(String extensions) {
+        if (extensions == null) {
+            return null;
+        }
+
+        for (String offer : extensions.split(",")) {
+            PerMessageDeflateHandler handler = accept(offer.split(";"));
+            if (handler != null) {
+                return handler;
+            }
+        }
+        return null;
+    }
+
+    private PerMessageDeflateHandler accept(String[] offer) {
+        if (!EXTENSION.equalsIgnoreCase(offer[0].trim())) {
+            return null;
+        }
+
+        boolean serverContextTakeover = contextTakeover;
+        boolean clientContextTakeover = contextTakeover;
+        int serverWindowBits = windowBits;
+        int clientWindowBits = MAX_WINDOW_BITS;
+        boolean clientWindowBitsOffered = false;
+
+        for (int i = 1; i < offer.length; i++) {
+            String param = offer[i].trim();
+            String value = null;
+            int eq = param.indexOf('=');
+            if (eq >= 0) {
+                value = param.substring(eq + 1).trim().replace("\"", "");
+                param = param.substring(0, eq).trim();
+            }
+
+            if (param.equalsIgnoreCase("server_no_context_takeover")) {
+                serverContextTakeover = false;
+            } else if (param.equalsIgnoreCase("client_no_context_takeover")) {
+                clientContextTakeover = false;
+            } else if (param.equalsIgnoreCase("server_max_window_bits")) {
+                int bits = parseWindowBits(value);
+                if (bits < MIN_WINDOW_BITS) {
+                    return null;
+                }
+                serverWindowBits = Math.min(serverWindowBits, bits);
+            } else if (param.equalsIgnoreCase("client_max_window_bits")) {
+                clientWindowBitsOffered = true;
+                if (value != null) {
+                    int bits = parseWindowBits(value);
+                    if (bits < 0) {
+                        return null;
+                    }
+                    clientWindowBits = bits;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        // Shrink the compression state kept per connection until it fits the memory cap
+        int memLevel = DEFAULT_MEM_LEVEL;
+        if (maxMemory > 0) {
+            if (clientContextTakeover && clientWindowBitsOffered) {
+                while (clientWindowBits > MIN_WINDOW_BITS && inflaterMemory(clientWindowBits) > maxMemory / 4) {
+                    clientWindowBits--;
+                }
+            }
+            int available = maxMemory - (clientContextTakeover ? inflaterMemory(clientWindowBits) : 0);
+            if (serverContextTakeover) {
+                while (memLevel > 1 && deflaterMemory(serverWindowBits, memLevel) > available) {
+                    memLevel--;
+                }
+                while (serverWindowBits > MIN_WINDOW_BITS && deflaterMemory(serverWindowBits, memLevel) > available) {
+                    serverWindowBits--;
+                }
+            }
+        }
+
+        StringBuilder response = new StringBuilder(EXTENSION);
+        if (!serverContextTakeover) {
+            response.append("; server_no_context_takeover");
+        }
+        if (!clientContextTakeover) {
+            response.append("; client_no_context_takeover");
+        }
+        if (serverWindowBits < MAX_WINDOW_BITS) {
+            response.append("; server_max_window_bits=").append(serverWindowBits);
+        }
+        if (clientWindowBitsOffered && clientWindowBits < MAX_WINDOW_BITS) {
+            response.append("; client_max_window_bits=").append(clientWindowBits);
+        }
+
+        return new PerMessageDeflateHandler(this, response.toString(),
+                serverContextTakeover ? newDeflater(serverWindowBits, memLevel) : null, serverWindowBits,
+                clientContextTakeover ? newInflater(Math.max(MIN_WINDOW_BITS, clientWindowBits)) : null);
+    }
+
+    private static int parseWindowBits(String value) {
+        try {
+            int bits = Integer.parseInt(value);
+            return bits >= 8 && bits <= MAX_WINDOW_BITS ? bits : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Same estimate as zlib's zconf.h */
+    static int deflaterMemory(int windowBits, int memLevel) {
+        return (1 << (windowBits + 2)) + (1 << (memLevel + 9));
+    }
+
+    static int inflaterMemory(int windowBits) {
+        return (1 << windowBits) + 7 * 1024;
+    }
+
+    ZStream borrowDeflater(int windowBits) {
+        ZStream z = deflaters.get(windowBits).poll();
+        return z != null ? z : newDeflater(windowBits, DEFAULT_MEM_LEVEL);
+    }
+
+    /**
+     * Only return deflaters that completed their last message, leaving no history behind.
+     */
+    void returnDeflater(int windowBits, ZStream z) {
+        deflaters.get(windowBits).offer(z);
+    }
+
+    ZStream borrowInflater() {
+        ZStream z = inflaters.poll();
+        return z != null ? z : newInflater(MAX_WINDOW_BITS);
+    }
+
+    /**
+     * Only return inflaters that completed their last message. Since the client compresses
+     * every message on its own, what an inflater saw earlier is never referred to again.
+     */
+    void returnInflater(ZStream z) {
+        inflaters.offer(z);
+    }
+
+    static ZStream newDeflater(int windowBits, int memLevel) {
+        return Zlib.newDeflater(JZlib.Z_DEFAULT_COMPRESSION, windowBits, memLevel, JZlib.W_NONE);
+    }
+
+    static ZStream newInflater(int windowBits) {
+        ZStream z = new ZStream();
+        int rc = z.inflateInit(windowBits, JZlib.W_NONE);
+        if (rc != JZlib.Z_OK) {
+            throw new CompressionException("Failed to initialize inflater: " + rc);
+        }
+        return z;
+    }
+
+    /**
+     * Compress a complete message, leaving out the trailing empty block as the extension requires.
+     *
+     * @param flush JZlib.Z_SYNC_FLUSH keeps the history for the next message,
+     *              JZlib.Z_FULL_FLUSH forgets it
+     */
+    static ChannelBuffer deflate(ZStream z, ChannelBuffer in, int flush) {
+        ChannelBuffer out = Zlib.deflate(z, in, flush);
+        int end = out.writerIndex();
+        if (end >= TAIL.length && out.getByte(end - 1) == TAIL[3] && out.getByte(end - 2) == TAIL[2]) {
+            out.writerIndex(end - TAIL.length);
+        }
+        return out;
+    }
+
+    /**
+     * Decompress a frame of a message, giving up as soon as it inflates to more than allowed.
+     * The inflater is then left in the middle of the message and cannot be used again.
+     *
+     * @param last     Whether the frame ends the message and should have the empty block appended
+     * @param maxBytes Bytes the frame may inflate to, what is left of the message size limit
+     * @return The inflated frame, or null if it is larger than maxBytes
+     */
+    static ChannelBuffer inflate(ZStream z, ChannelBuffer in, boolean last, int maxBytes) {
+        int length = in.readableBytes();
+        byte[] input = new byte[length + (last ? TAIL.length : 0)];
+        in.getBytes(in.readerIndex(), input, 0, length);
+        if (last) {
+            System.arraycopy(TAIL, 0, input, length, TAIL.length);
+        }
+        z.next_in = input;
+        z.next_in_index = 0;
+        z.avail_in = input.length;
+
+        // One byte more than allowed is enough to tell the frame is too large
+        final long limit = Math.max(0, maxBytes) + 1L;
+        byte[] out = new byte[(int) Math.min(limit, Math.max(64, length * 4L))];
+        z.next_out = out;
+        z.next_out_index = 0;
+        try {
+            for (;;) {
+                z.avail_out = out.length - z.next_out_index;
+                int rc = z.inflate(JZlib.Z_SYNC_FLUSH);
+                if (rc == JZlib.Z_STREAM_END) {
+                    // The client may end the stream with a final block; start over for the next message
+                    z.inflateEnd();
+                    z.inflateInit(MAX_WINDOW_BITS, JZlib.W_NONE);
+                    break;
+                }
+                if (rc != JZlib.Z_OK && rc != JZlib.Z_BUF_ERROR) {
+                    throw new CompressionException("Inflate failed: " + rc + " (" + z.msg + ")");
+                }
+                if (z.avail_out > 0) {
+                    break;
+                }
+                if (z.next_out_index > maxBytes) {
+                    return null;
+                }
+                out = Arrays.copyOf(out, (int) Math.min(limit, out.length * 2L));
+                z.next_out = out;
+            }
+            if (z.next_out_index > maxBytes) {
+                return null;
+            }
+            return ChannelBuffers.wrappedBuffer(out, 0, z.next_out_index);
+        } finally {
+            z.next_in = null;
+            z.next_out = null;
+        }
+    }
+}
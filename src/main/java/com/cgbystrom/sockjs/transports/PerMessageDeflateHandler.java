@@ -0,0 +1,170 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.compression.CompressionException;
+import org.jboss.netty.handler.codec.http.HttpResponse;
+import org.jboss.netty.handler.codec.http.HttpResponseStatus;
+import org.jboss.netty.handler.codec.http.websocketx.*;
+import org.jboss.netty.util.internal.jzlib.JZlib;
+import org.jboss.netty.util.internal.jzlib.ZStream;
+
+/**
+ * Compresses outgoing and decompresses incoming messages of one WebSocket connection,
+ * as negotiated by PerMessageDeflate. Sits right before the WebSocket transport and
+ * adds the negotiated extension to the handshake response on its way out.
+ */
+public class PerMessageDeflateHandler extends SimpleChannelHandler {
+    /** RSV1 marks the first frame of a compressed message */
+    static final int RSV1 = 0x4;
+
+    private final PerMessageDeflate settings;
+    private final String extension;
+    private final int windowBits;
+    /** Kept for the whole connection with context takeover, otherwise borrowed per message */
+    private final ZStream deflater;
+    private final ZStream inflater;
+    /** Inflater borrowed for a compressed message arriving in several frames */
+    private ZStream messageInflater;
+    private boolean receivingCompressed;
+    /** Inflated bytes of the compressed message being received */
+    private long messageSize;
+    /** Set once the connection is being closed for a bad message, later frames are dropped */
+    private boolean isClosing;
+
+    PerMessageDeflateHandler(PerMessageDeflate settings, String extension, ZStream deflater, int windowBits, ZStream inflater) {
+        this.settings = settings;
+        this.extension = extension;
+        this.deflater = deflater;
+        this.windowBits = windowBits;
+        this.inflater = inflater;
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame || msg instanceof ContinuationWebSocketFrame) {
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            if (isClosing) {
+                return;
+            }
+            boolean compressed = msg instanceof ContinuationWebSocketFrame ? receivingCompressed : (frame.getRsv() & RSV1) != 0;
+            receivingCompressed = compressed && !frame.isFinalFragment();
+
+            if (compressed) {
+                if (!(msg instanceof ContinuationWebSocketFrame)) {
+                    messageSize = 0;
+                }
+                ChannelBuffer payload;
+                try {
+                    payload = inflate(frame.getBinaryData(), frame.isFinalFragment(),
+                            (int) Math.max(0, settings.getMaxMessageSize() - messageSize));
+                } catch (CompressionException ex) {
+                    close(ctx, 1007, "Invalid compressed data");
+                    return;
+                }
+                if (payload == null) {
+                    close(ctx, 1009, "Message too big");
+                    return;
+                }
+                messageSize += payload.readableBytes();
+                Channels.fireMessageReceived(ctx, copy(frame, frame.getRsv() & ~RSV1, payload), e.getRemoteAddress());
+                return;
+            }
+        }
+        super.messageReceived(ctx, e);
+    }
+
+    @Override
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        Object msg = e.getMessage();
+        if (msg instanceof HttpResponse) {
+            HttpResponse response = (HttpResponse) msg;
+            if (response.getStatus().equals(HttpResponseStatus.SWITCHING_PROTOCOLS)) {
+                response.addHeader(PerMessageDeflate.SEC_WEBSOCKET_EXTENSIONS, extension);
+            }
+        } else if (msg instanceof TextWebSocketFrame || msg instanceof BinaryWebSocketFrame) {
+            WebSocketFrame frame = (WebSocketFrame) msg;
+            if (frame.isFinalFragment() && frame.getRsv() == 0 && frame.getBinaryData().readableBytes() >= settings.getMinSize()) {
+                writeCompressed(ctx, e, frame);
+                return;
+            }
+        }
+        super.writeRequested(ctx, e);
+    }
+
+    /**
+     * Compress a complete message frame for a caller writing already encoded frames.
+     * With context takeover, the caller must write frames in the order they were compressed.
+     *
+     * @return The compressed frame, or the frame itself if it is too small to be worth it
+     */
+    WebSocketFrame compress(WebSocketFrame frame) {
+        if (!frame.isFinalFragment() || frame.getRsv() != 0 || frame.getBinaryData().readableBytes() < settings.getMinSize()) {
+            return frame;
+        }
+
+        ChannelBuffer payload;
+        if (deflater != null) {
+            synchronized (this) {
+                payload = PerMessageDeflate.deflate(deflater, frame.getBinaryData(), JZlib.Z_SYNC_FLUSH);
+            }
+        } else {
+            ZStream z = settings.borrowDeflater(windowBits);
+            payload = PerMessageDeflate.deflate(z, frame.getBinaryData(), JZlib.Z_FULL_FLUSH);
+            settings.returnDeflater(windowBits, z);
+        }
+        return copy(frame, RSV1, payload);
+    }
+
+    private void writeCompressed(ChannelHandlerContext ctx, MessageEvent e, WebSocketFrame frame) {
+        if (deflater != null) {
+            // Messages must leave in the order they went through the deflater
+            synchronized (this) {
+                ChannelBuffer payload = PerMessageDeflate.deflate(deflater, frame.getBinaryData(), JZlib.Z_SYNC_FLUSH);
+                ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), copy(frame, RSV1, payload), e.getRemoteAddress()));
+            }
+        } else {
+            ZStream z = settings.borrowDeflater(windowBits);
+            ChannelBuffer payload = PerMessageDeflate.deflate(z, frame.getBinaryData(), JZlib.Z_FULL_FLUSH);
+            settings.returnDeflater(windowBits, z);
+            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), copy(frame, RSV1, payload), e.getRemoteAddress()));
+        }
+    }
+
+    /** Closes the connection, dropping an inflater left in the middle of a message */
+    private void close(ChannelHandlerContext ctx, int code, String reason) {
+        isClosing = true;
+        messageInflater = null;
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(ChannelFutureListener.CLOSE);
+        Channels.write(ctx, future, new CloseWebSocketFrame(code, reason));
+    }
+
+    /** @return Inflated payload, or null if it exceeds maxBytes */
+    private ChannelBuffer inflate(ChannelBuffer payload, boolean last, int maxBytes) {
+        if (inflater != null) {
+            return PerMessageDeflate.inflate(inflater, payload, last, maxBytes);
+        }
+
+        if (messageInflater == null) {
+            messageInflater = settings.borrowInflater();
+        }
+        ChannelBuffer result = PerMessageDeflate.inflate(messageInflater, payload, last, maxBytes);
+        if (last && result != null) {
+            settings.returnInflater(messageInflater);
+            messageInflater = null;
+        }
+        return result;
+    }
+
+    private static WebSocketFrame copy(WebSocketFrame frame, int rsv, ChannelBuffer payload) {
+        if (frame instanceof TextWebSocketFrame) {
+            return new TextWebSocketFrame(frame.isFinalFragment(), rsv, payload);
+        } else if (frame instanceof BinaryWebSocketFrame) {
+            return new BinaryWebSocketFrame(frame.isFinalFragment(), rsv, payload);
+        } else {
+            return new ContinuationWebSocketFrame(frame.isFinalFragment(), rsv, payload);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.cgbystrom.sockjs.Frame;
+import com.cgbystrom.sockjs.Service;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+
+import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
+
+/**
+ * Base class for polling transports
+ *
+ * Every poll is answered with exactly one frame in a complete (non-chunked) response.
+ * How long a poll is held open and how long it waits to coalesce messages is up to the SessionHandler.
+ * A poll still unanswered well after its hold time has run out is closed.
+ */
+public class PollingTransport extends BaseTransport {
+    public PollingTransport(Service service, TransportMetrics transportMetrics) {
+        super(service, transportMetrics);
+    }
+
+    @Override
+    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) throws Exception {
+        if (e.getState() == IdleState.ALL_IDLE) {
+            reap(ctx, e);
+        } else {
+            super.channelIdle(ctx, e);
+        }
+    }
+
+    /**
+     * Write the response to the current poll and detach this transport.
+     * The connection is only closed if the request did not ask for keep-alive.
+     */
+    protected void writeResponse(ChannelHandlerContext ctx, MessageEvent e, HttpResponse response) {
+        final Frame frame = (Frame) e.getMessage();
+        if (frame instanceof Frame.HeartbeatFrame) {
+            transportMetrics.pollsTimedOut.mark();
+        } else if (frame instanceof Frame.MessageFrame) {
+            transportMetrics.messagesPerPoll.update(((Frame.MessageFrame) frame).getMessages().length);
+        }
+
+        final boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        response.setHeader(CONTENT_LENGTH, response.getContent().readableBytes());
+        HttpHeaders.setKeepAlive(response, keepAlive);
+        if (!keepAlive) {
+            e.getFuture().addListener(ChannelFutureListener.CLOSE);
+        }
+        // Polls may be answered from a timer or the application, so detach before the next request can arrive
+        final ChannelPipeline pipeline = ctx.getPipeline();
+        resetPipeline(pipeline, this, transportMetrics);
+        pipeline.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), response, e.getRemoteAddress()));
+    }
+}
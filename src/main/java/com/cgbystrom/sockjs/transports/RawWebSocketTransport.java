@@ -4,15 +4,22 @@ package com.cgbystrom.sockjs.transports;
 import com.cgbystrom.sockjs.*;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.handler.codec.http.websocketx.*;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.CharsetUtil;
 
 import java.io.IOException;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Names;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
 import static org.jboss.netty.handler.codec.http.HttpHeaders.isKeepAlive;
 import static org.jboss.netty.handler.codec.http.HttpMethod.GET;
@@ -22,11 +29,29 @@ import static org.jboss.netty.handler.codec.http.HttpVersion.HTTP_1_1;
 public class RawWebSocketTransport extends SimpleChannelHandler {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(RawWebSocketTransport.class);
 
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int MAX_HEADER_LENGTH = 10;
+
     private WebSocketServerHandshaker handshaker;
     private final String path;
+    private final Service service;
+    /** Frame headers of a batch, reused once the batch using it has been written */
+    private final ChannelBuffer headerBuffer = ChannelBuffers.buffer(32 * MAX_HEADER_LENGTH);
+    private boolean headerBufferInUse;
+    /** Frames of the message being reassembled, all but the last */
+    private final List<ChannelBuffer> fragments = new ArrayList<ChannelBuffer>();
+    private int messageSize;
+    private boolean receivingBinary;
+    private final CharsetDecoder utf8 = CharsetUtil.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+    /** Set once the handshake is done, except for Hixie-76 which has no ping */
+    private WebSocketHeartbeat.Connection liveness;
 
-    public RawWebSocketTransport(String path) {
+    public RawWebSocketTransport(String path, Service service) {
         this.path = path;
+        this.service = service;
     }
 
     @Override
@@ -39,13 +64,23 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
         // Overridden method to prevent propagation of channel state event upstream.
     }
 
+    @Override
+    public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        if (liveness != null) {
+            service.getWebSocketHeartbeat().unregister(liveness);
+            liveness = null;
+        }
+        super.channelDisconnected(ctx, e);
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final long receivedAt = service.getTraceSampleInterval() > 0 ? System.nanoTime() : 0;
         Object msg = e.getMessage();
         if (msg instanceof HttpRequest) {
             handleHttpRequest(ctx, e.getChannel(), (HttpRequest) msg);
         } else if (msg instanceof WebSocketFrame) {
-            handleWebSocketFrame(ctx, e.getChannel(), (WebSocketFrame) msg);
+            handleWebSocketFrame(ctx, e.getChannel(), (WebSocketFrame) msg, receivedAt);
         } else {
             logger.error("Unknown frame type: " + e.getMessage());
         }
@@ -56,17 +91,30 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
         if (e.getMessage() instanceof Frame) {
             if (e.getMessage() instanceof Frame.MessageFrame) {
                 Frame.MessageFrame f = (Frame.MessageFrame) e.getMessage();
-                logger.debug("Write requested for " + f.getClass().getSimpleName());
-                for (SockJsMessage m : f.getMessages()) {
-                    TextWebSocketFrame message = new TextWebSocketFrame(m.getMessage());
-                    super.writeRequested(ctx, new DownstreamMessageEvent(e.getChannel(), e.getFuture(), message, e.getRemoteAddress()));    
+                if (logger.isDebugEnabled())
+                    logger.debug("Write requested for " + f.getClass().getSimpleName());
+                SockJsMessage[] messages = f.getMessages();
+                // Sent as they are, without encoding the frame
+                f.traceStage(MessageTrace.Stage.WRAPPED);
+                if (messages.length == 1) {
+                    super.writeRequested(ctx, new DownstreamMessageEvent(e.getChannel(), e.getFuture(), toWebSocketFrame(messages[0]), e.getRemoteAddress()));
+                } else if (handshaker.getVersion() == WebSocketVersion.V00) {
+                    // Hixie-76 framing is left to Netty's encoder, the last frame completes the future
+                    for (int i = 0; i < messages.length; i++) {
+                        ChannelFuture future = i == messages.length - 1 ? e.getFuture() : Channels.future(e.getChannel());
+                        super.writeRequested(ctx, new DownstreamMessageEvent(e.getChannel(), future, toWebSocketFrame(messages[i]), e.getRemoteAddress()));
+                    }
+                } else {
+                    writeBatch(ctx, e, messages);
                 }
             } else if (e.getMessage() instanceof Frame.CloseFrame) {
                 // FIXME: Should really send close frame here?
                 // handshaker.close(e.getChannel(), new CloseWebSocketFrame()); ?
                 e.getChannel().close();
             } else if (e.getMessage() instanceof Frame.OpenFrame) {
-                logger.debug("Open frame silenced");
+                if (logger.isDebugEnabled())
+                    logger.debug("Open frame silenced");
+                e.getFuture().setSuccess();
             } else {
                 throw new RuntimeException("Unknown frame: " + e.getMessage());
             }
@@ -75,6 +123,70 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
         }
     }
 
+    /**
+     * Encode the messages of a batch as WebSocket frames of one buffer, written with a single future.
+     * Netty's frame encoder lets the already encoded buffer pass.
+     */
+    private void writeBatch(ChannelHandlerContext ctx, MessageEvent e, SockJsMessage[] messages) {
+        final PerMessageDeflateHandler deflate = ctx.getPipeline().get(PerMessageDeflateHandler.class);
+        final ChannelBuffer headers = acquireHeaderBuffer(messages.length * MAX_HEADER_LENGTH);
+        final ChannelBuffer[] parts = new ChannelBuffer[messages.length * 2];
+
+        for (int i = 0; i < messages.length; i++) {
+            WebSocketFrame frame = toWebSocketFrame(messages[i]);
+            if (deflate != null) {
+                frame = deflate.compress(frame);
+            }
+            final ChannelBuffer payload = frame.getBinaryData();
+            final int headerStart = headers.writerIndex();
+            writeHeader(headers, frame instanceof BinaryWebSocketFrame ? OPCODE_BINARY : OPCODE_TEXT, frame.getRsv(), payload.readableBytes());
+            parts[i * 2] = headers.slice(headerStart, headers.writerIndex() - headerStart);
+            parts[i * 2 + 1] = payload;
+        }
+
+        if (headers == headerBuffer) {
+            e.getFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    releaseHeaderBuffer();
+                }
+            });
+        }
+        ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), ChannelBuffers.wrappedBuffer(parts), e.getRemoteAddress()));
+    }
+
+    /** The reusable header buffer, unless it is still part of a pending write or too small */
+    private synchronized ChannelBuffer acquireHeaderBuffer(int size) {
+        if (headerBufferInUse || size > headerBuffer.capacity()) {
+            return ChannelBuffers.buffer(size);
+        }
+        headerBufferInUse = true;
+        headerBuffer.clear();
+        return headerBuffer;
+    }
+
+    private synchronized void releaseHeaderBuffer() {
+        headerBufferInUse = false;
+    }
+
+    /** Unmasked frame header, as sent by servers (RFC 6455 section 5.2) */
+    private static void writeHeader(ChannelBuffer buffer, int opcode, int rsv, int length) {
+        buffer.writeByte(0x80 | (rsv % 8) << 4 | opcode);
+        if (length < 126) {
+            buffer.writeByte(length);
+        } else if (length <= 0xFFFF) {
+            buffer.writeByte(126);
+            buffer.writeShort(length);
+        } else {
+            buffer.writeByte(127);
+            buffer.writeLong(length);
+        }
+    }
+
+    private static WebSocketFrame toWebSocketFrame(SockJsMessage message) {
+        return message.isBinary() ? new BinaryWebSocketFrame(message.getData()) : new TextWebSocketFrame(message.getMessage());
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         // FIXME: Move to BaseTransport
@@ -106,16 +218,34 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
         }
 
         // Handshake
-        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(getWebSocketLocation(req), "chat, superchat", false);
+        final long handshakeStart = Events.ENABLED ? System.nanoTime() : 0;
+        PerMessageDeflateHandler deflate = service.isWebSocketCompressionEnabled() ?
+                service.getPerMessageDeflate().negotiate(req.getHeader(PerMessageDeflate.SEC_WEBSOCKET_EXTENSIONS)) : null;
+        WebSocketHandshakers handshakers = service.getWebSocketHandshakers();
 
-        handshaker = wsFactory.newHandshaker(req);
+        handshaker = handshakers.get(channel, req, path, deflate != null);
         if (handshaker == null) {
-            wsFactory.sendUnsupportedWebSocketVersionResponse(ctx.getChannel());
+            handshakers.sendUnsupportedVersionResponse(ctx.getChannel());
+            if (Events.ENABLED) {
+                Events.RECORDER.webSocketHandshake("rawwebsocket", false, System.nanoTime() - handshakeStart);
+            }
         } else {
+            final boolean compress = deflate != null && handshaker.getVersion() != WebSocketVersion.V00;
+            if (compress) {
+                ctx.getPipeline().addBefore(ctx.getName(), "sockjs-websocket-deflate", deflate);
+            }
             handshaker.handshake(ctx.getChannel(), req).addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
+                    if (Events.ENABLED) {
+                        Events.RECORDER.webSocketHandshake("rawwebsocket", future.isSuccess(), System.nanoTime() - handshakeStart);
+                    }
                     if (future.isSuccess()) {
+                        if (handshaker.getVersion() != WebSocketVersion.V00) {
+                            ctx.getPipeline().replace(WebSocket08FrameDecoder.class, "wsdecoder",
+                                    new WebSocketFrameDecoder(handshaker.getMaxFramePayloadLength(), compress));
+                            liveness = service.getWebSocketHeartbeat().register(ctx.getChannel());
+                        }
                         ctx.getPipeline().remove(ServiceRouter.class);
                         ctx.getPipeline().remove(PreflightHandler.class);
                         ctx.sendUpstream(new UpstreamChannelStateEvent(channel, ChannelState.CONNECTED, Boolean.TRUE));
@@ -125,7 +255,7 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
         }
     }
 
-    private void handleWebSocketFrame(ChannelHandlerContext ctx, Channel channel, WebSocketFrame frame) throws IOException {
+    private void handleWebSocketFrame(ChannelHandlerContext ctx, Channel channel, WebSocketFrame frame, long receivedAt) throws IOException {
         // Check for closing frame
         if (frame instanceof CloseWebSocketFrame) {
             handshaker.close(ctx.getChannel(), (CloseWebSocketFrame) frame);
@@ -133,14 +263,64 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
         } else if (frame instanceof PingWebSocketFrame) {
             ctx.getChannel().write(new PongWebSocketFrame(frame.getBinaryData()));
             return;
-        } else if (!(frame instanceof TextWebSocketFrame)) {
+        } else if (frame instanceof PongWebSocketFrame) {
+            if (liveness != null) {
+                liveness.pongReceived(frame.getBinaryData());
+            }
+            return;
+        } else if (!(frame instanceof TextWebSocketFrame || frame instanceof BinaryWebSocketFrame || frame instanceof ContinuationWebSocketFrame)) {
             throw new UnsupportedOperationException(String.format("%s frame types not supported", frame.getClass().getName()));
         }
 
-        String request = ((TextWebSocketFrame) frame).getText();
-        logger.debug(String.format("Channel %s received '%s'", ctx.getChannel().getId(), request));
+        if (!(frame instanceof ContinuationWebSocketFrame)) {
+            receivingBinary = frame instanceof BinaryWebSocketFrame;
+            messageSize = 0;
+            if (receivingBinary) {
+                final SessionHandler session = ctx.getPipeline().get(SessionHandler.class);
+                if (session != null && !session.isBinarySupported()) {
+                    handshaker.close(ctx.getChannel(), new CloseWebSocketFrame(1003, "Binary messages not supported"));
+                    return;
+                }
+            }
+        }
+        messageSize += frame.getBinaryData().readableBytes();
+        if (messageSize > service.getMaxWebSocketMessageSize()) {
+            fragments.clear();
+            handshaker.close(ctx.getChannel(), new CloseWebSocketFrame(1009, "Message too big"));
+            return;
+        }
+        if (!frame.isFinalFragment()) {
+            fragments.add(frame.getBinaryData());
+            return;
+        }
+
+        ChannelBuffer data = frame.getBinaryData();
+        if (!fragments.isEmpty()) {
+            fragments.add(data);
+            data = ChannelBuffers.wrappedBuffer(fragments.toArray(new ChannelBuffer[fragments.size()]));
+            fragments.clear();
+        }
 
-        SockJsMessage jsMessage = new SockJsMessage(request);
+        SockJsMessage jsMessage;
+        if (receivingBinary) {
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Channel %s received %d bytes", ctx.getChannel().getId(), data.readableBytes()));
+            }
+            jsMessage = new SockJsMessage(data);
+        } else {
+            String request;
+            try {
+                request = utf8.decode(data.toByteBuffer()).toString();
+            } catch (CharacterCodingException e) {
+                handshaker.close(ctx.getChannel(), new CloseWebSocketFrame(1007, "Invalid UTF-8"));
+                return;
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug(String.format("Channel %s received '%s'", ctx.getChannel().getId(), request));
+            }
+            jsMessage = new SockJsMessage(request);
+        }
+        service.traceReceived(jsMessage, receivedAt);
         ctx.sendUpstream(new UpstreamMessageEvent(channel, jsMessage, channel.getRemoteAddress()));
     }
 
@@ -157,9 +337,4 @@ public class RawWebSocketTransport extends SimpleChannelHandler {
             f.addListener(ChannelFutureListener.CLOSE);
         }
     }
-
-    private String getWebSocketLocation(HttpRequest req) {
-        // FIXME: Handle SSL and non-standard HTTP port?
-        return "ws://" + req.getHeader(Names.HOST) + path;
-    }
 }
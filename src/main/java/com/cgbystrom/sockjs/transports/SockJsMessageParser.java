@@ -0,0 +1,212 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.codehaus.jackson.JsonLocation;
+import org.codehaus.jackson.JsonParseException;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.util.CharsetUtil;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Parses the JSON string or array of strings sent by SockJS clients over WebSocket,
+ * one frame of a fragmented message at a time.
+ *
+ * Messages are handed out as soon as their closing quote arrives, so only the message being
+ * parsed is held in memory, never the payload of the whole WebSocket message.
+ */
+final class SockJsMessageParser {
+    private enum State { START, ARRAY_FIRST, ARRAY_VALUE, ARRAY_NEXT, STRING, ESCAPE, UNICODE, END }
+
+    private State state = State.START;
+    private boolean inArray;
+    /** UTF-8 bytes of the current string since the last escape, decoded together once complete */
+    private byte[] bytes = new byte[64];
+    private int byteCount;
+    private final StringBuilder string = new StringBuilder();
+    private int unicode;
+    private int unicodeDigits;
+    private long offset;
+    private final CharsetDecoder utf8 = CharsetUtil.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+
+    /**
+     * @param fragment Payload of the next frame of the WebSocket message
+     * @param last Whether the frame ends the WebSocket message
+     * @return Messages completed by this frame, in order
+     * @throws JsonParseException If the payload is not a string or an array of strings
+     */
+    List<String> parse(ChannelBuffer fragment, boolean last) throws JsonParseException {
+        List<String> messages = Collections.emptyList();
+        final int end = fragment.writerIndex();
+        int i = fragment.readerIndex();
+
+        while (i < end) {
+            if (state == State.STRING) {
+                // Take everything up to the next quote or escape in one go
+                int run = i;
+                byte b;
+                while (run < end && (b = fragment.getByte(run)) != '"' && b != '\\') {
+                    if ((b & 0xFF) < 0x20) {
+                        throw error("Unescaped control character", run - i);
+                    }
+                    run++;
+                }
+                append(fragment, i, run - i);
+                offset += run - i;
+                i = run;
+                if (i == end) {
+                    break;
+                }
+            }
+
+            final byte b = fragment.getByte(i);
+            switch (state) {
+                case START:
+                    if (b == '[') {
+                        inArray = true;
+                        state = State.ARRAY_FIRST;
+                    } else if (b == '"') {
+                        state = State.STRING;
+                    } else {
+                        throw error("Expected message as string or string[]", 0);
+                    }
+                    break;
+                case ARRAY_FIRST:
+                    if (b == '"') {
+                        state = State.STRING;
+                    } else if (b == ']') {
+                        state = State.END;
+                    } else if (!isWhitespace(b)) {
+                        throw error("Expected string or ']'", 0);
+                    }
+                    break;
+                case ARRAY_VALUE:
+                    if (b == '"') {
+                        state = State.STRING;
+                    } else if (!isWhitespace(b)) {
+                        throw error("Expected string in array", 0);
+                    }
+                    break;
+                case ARRAY_NEXT:
+                    if (b == ',') {
+                        state = State.ARRAY_VALUE;
+                    } else if (b == ']') {
+                        state = State.END;
+                    } else if (!isWhitespace(b)) {
+                        throw error("Expected ',' or ']'", 0);
+                    }
+                    break;
+                case STRING:
+                    decode();
+                    if (b == '\\') {
+                        state = State.ESCAPE;
+                    } else {
+                        if (messages.isEmpty()) {
+                            messages = new ArrayList<String>(4);
+                        }
+                        messages.add(string.toString());
+                        string.setLength(0);
+                        state = inArray ? State.ARRAY_NEXT : State.END;
+                    }
+                    break;
+                case ESCAPE:
+                    state = State.STRING;
+                    switch (b) {
+                        case '"': string.append('"'); break;
+                        case '\\': string.append('\\'); break;
+                        case '/': string.append('/'); break;
+                        case 'b': string.append('\b'); break;
+                        case 'f': string.append('\f'); break;
+                        case 'n': string.append('\n'); break;
+                        case 'r': string.append('\r'); break;
+                        case 't': string.append('\t'); break;
+                        case 'u':
+                            unicode = 0;
+                            unicodeDigits = 0;
+                            state = State.UNICODE;
+                            break;
+                        default:
+                            throw error("Unrecognized escape", 0);
+                    }
+                    break;
+                case UNICODE:
+                    int digit = Character.digit(b, 16);
+                    if (digit < 0) {
+                        throw error("Expected hex digit", 0);
+                    }
+                    unicode = unicode << 4 | digit;
+                    if (++unicodeDigits == 4) {
+                        string.append((char) unicode);
+                        state = State.STRING;
+                    }
+                    break;
+                case END:
+                    if (!isWhitespace(b)) {
+                        throw error("Unexpected data after message", 0);
+                    }
+                    break;
+            }
+            offset++;
+            i++;
+        }
+
+        if (last) {
+            // An empty payload carries no messages, anything else has to be complete
+            if (state != State.END && !(state == State.START && offset == 0)) {
+                throw error("Unexpected end of message", 0);
+            }
+            reset();
+        }
+        return messages;
+    }
+
+    private void reset() {
+        state = State.START;
+        inArray = false;
+        byteCount = 0;
+        string.setLength(0);
+        offset = 0;
+        if (bytes.length > 1024) {
+            bytes = new byte[64];
+        }
+    }
+
+    private void append(ChannelBuffer fragment, int index, int length) {
+        if (byteCount + length > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteCount + length));
+        }
+        fragment.getBytes(index, bytes, byteCount, length);
+        byteCount += length;
+    }
+
+    /** The bytes taken so far end right before an ASCII quote or backslash, so they are always complete */
+    private void decode() throws JsonParseException {
+        if (byteCount == 0) {
+            return;
+        }
+        try {
+            CharBuffer chars = utf8.decode(ByteBuffer.wrap(bytes, 0, byteCount));
+            string.append(chars);
+        } catch (CharacterCodingException e) {
+            throw new JsonParseException("Invalid UTF-8 in message", JsonLocation.NA, e);
+        }
+        byteCount = 0;
+    }
+
+    private JsonParseException error(String reason, int skipped) {
+        return new JsonParseException(reason + " at byte " + (offset + skipped), JsonLocation.NA);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t' || b == '\n' || b == '\r';
+    }
+}
@@ -1,8 +1,16 @@
 package com.cgbystrom.sockjs.transports;
 
+import com.cgbystrom.sockjs.Frame;
+import com.cgbystrom.sockjs.Service;
+import com.cgbystrom.sockjs.SessionHandler;
 import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.timeout.IdleState;
+import org.jboss.netty.handler.timeout.IdleStateEvent;
+import org.jboss.netty.util.internal.jzlib.JZlib;
+import org.jboss.netty.util.internal.jzlib.ZStream;
 
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -11,14 +19,23 @@ import java.util.concurrent.atomic.AtomicInteger;
  * Base class for streaming transports
  *
  * Handles HTTP chunking and response size limiting for browser "garbage collection".
+ * If the service enables it, the response is gzip or deflate encoded as the client accepts,
+ * with the deflater flushed after every chunk so nothing is held back.
+ * A response that has been quiet for a heartbeat interval is sent a heartbeat frame.
  */
 public class StreamingTransport extends BaseTransport {
     /**
      *  Max size of response content sent before closing the connection.
      *  Since browsers buffer chunked/streamed content in-memory the connection must be closed
      *  at regular intervals. Call it "garbage collection" if you will.
+     *  Taken from the session, which grows it for clients reaching it over and over.
      */
-    protected final int maxResponseSize;
+    protected int maxResponseSize;
+
+    /** Session of the response, told when its max response size is reached */
+    private SessionHandler session;
+
+    private final AtomicBoolean maxResponseSizeReached = new AtomicBoolean(false);
 
     /** Track size of content chunks sent to the browser. */
     protected AtomicInteger numBytesSent = new AtomicInteger(0);
@@ -29,17 +46,30 @@ public class StreamingTransport extends BaseTransport {
     /** Keep track if ending HTTP chunk has been sent */
     private AtomicBoolean lastChunkSent = new AtomicBoolean(false);
 
-    public StreamingTransport(TransportMetrics transportMetrics) {
-        this(transportMetrics, 128 * 1024); // 128 KiB
+    /** Deflater of the response content, null unless it is gzip or deflate encoded */
+    private ZStream deflater;
+
+    /** Heartbeat sent when the response last went quiet, to tell a quiet connection from a stuck one */
+    private volatile ChannelFuture heartbeat;
+
+    public StreamingTransport(Service service, TransportMetrics transportMetrics) {
+        super(service, transportMetrics);
+        this.maxResponseSize = service.getMaxResponseSize();
     }
 
-    public StreamingTransport(TransportMetrics transportMetrics, int maxResponseSize) {
-        super(transportMetrics);
-        this.maxResponseSize = maxResponseSize;
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        // Before the session gets connected and starts writing
+        session = ctx.getPipeline().get(SessionHandler.class);
+        if (session != null) {
+            maxResponseSize = session.getMaxResponseSize();
+        }
+        super.messageReceived(ctx, e);
     }
 
     @Override
     public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        finishContentEncoding(ctx, e.getChannel());
         // request can be null since close can be requested prior to receiving a message.
         if (request != null && request.getProtocolVersion() == HttpVersion.HTTP_1_1 && lastChunkSent.compareAndSet(false, true)) {
             e.getChannel().write(HttpChunk.LAST_CHUNK).addListener(ChannelFutureListener.CLOSE);
@@ -48,13 +78,57 @@ public class StreamingTransport extends BaseTransport {
         }
     }
 
+    @Override
+    public void channelIdle(ChannelHandlerContext ctx, IdleStateEvent e) throws Exception {
+        if (e.getState() != IdleState.WRITER_IDLE) {
+            super.channelIdle(ctx, e);
+            return;
+        }
+
+        // Nothing at all has been written since the last heartbeat, the client is gone or not reading
+        final ChannelFuture lastHeartbeat = heartbeat;
+        if (lastHeartbeat != null && !lastHeartbeat.isDone() || !e.getChannel().isWritable()) {
+            reap(ctx, e);
+        } else {
+            heartbeat = e.getChannel().write(Frame.heartbeatFrame());
+        }
+    }
+
+    /**
+     * Send content as the next chunk of the response, encoded if the response is.
+     */
+    protected void writeChunk(ChannelHandlerContext ctx, MessageEvent e, ChannelFuture future, ChannelBuffer content) {
+        // Chunks must leave in the order they went through the deflater
+        synchronized (this) {
+            if (deflater != null) {
+                content = Zlib.deflate(deflater, content, JZlib.Z_SYNC_FLUSH);
+            }
+            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), future, new DefaultHttpChunk(content), e.getRemoteAddress()));
+        }
+    }
+
+    /** End the encoded content with its trailer, if it is encoded */
+    private void finishContentEncoding(ChannelHandlerContext ctx, Channel channel) {
+        synchronized (this) {
+            if (deflater == null) {
+                return;
+            }
+            ChannelBuffer trailer = Zlib.deflate(deflater, ChannelBuffers.EMPTY_BUFFER, JZlib.Z_FINISH);
+            deflater = null;
+            ctx.sendDownstream(new DownstreamMessageEvent(channel, Channels.future(channel), new DefaultHttpChunk(trailer), null));
+        }
+    }
+
+    /** Counts content before it is encoded, as that is what the browser buffers. */
     protected void logResponseSize(Channel channel, ChannelBuffer content) {
         transportMetrics.messagesSent.mark();
         transportMetrics.messagesSentSize.update(content.readableBytes());
 
-        numBytesSent.addAndGet(content.readableBytes());
-
-        if (numBytesSent.get() >= maxResponseSize) {
+        if (numBytesSent.addAndGet(content.readableBytes()) >= maxResponseSize && maxResponseSizeReached.compareAndSet(false, true)) {
+            transportMetrics.maxResponseSizeReached.update(maxResponseSize);
+            if (session != null) {
+                session.maxResponseSizeReached();
+            }
             // Close the connection to allow the browser to flush in-memory buffered content from this XHR stream.
             channel.close();
         }
@@ -66,6 +140,61 @@ public class StreamingTransport extends BaseTransport {
         if (request.getProtocolVersion().equals(HttpVersion.HTTP_1_1)) {
             response.setHeader(HttpHeaders.Names.TRANSFER_ENCODING, HttpHeaders.Values.CHUNKED);
         }
+        if (service.isStreamingCompressionEnabled()) {
+            response.setHeader(HttpHeaders.Names.VARY, HttpHeaders.Names.ACCEPT_ENCODING);
+            String encoding = selectContentEncoding(request.getHeader(HttpHeaders.Names.ACCEPT_ENCODING));
+            if (encoding != null) {
+                response.setHeader(HttpHeaders.Names.CONTENT_ENCODING, encoding);
+                synchronized (this) {
+                    deflater = Zlib.newDeflater(JZlib.Z_DEFAULT_COMPRESSION, 15, 8,
+                            encoding.equals(HttpHeaders.Values.GZIP) ? JZlib.W_GZIP : JZlib.W_ZLIB);
+                }
+            }
+        }
         return response;
     }
+
+    /**
+     * @return gzip or deflate, whichever the client prefers, or null if it accepts neither
+     */
+    static String selectContentEncoding(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+
+        float starQ = -1.0f;
+        float gzipQ = -1.0f;
+        float deflateQ = -1.0f;
+        for (String encoding : acceptEncoding.split(",")) {
+            float q = 1.0f;
+            int equalsPos = encoding.indexOf('=');
+            if (equalsPos != -1) {
+                try {
+                    q = Float.parseFloat(encoding.substring(equalsPos + 1));
+                } catch (NumberFormatException e) {
+                    q = 0.0f;
+                }
+            }
+            if (encoding.indexOf('*') >= 0) {
+                starQ = q;
+            } else if (encoding.contains(HttpHeaders.Values.GZIP)) {
+                gzipQ = Math.max(gzipQ, q);
+            } else if (encoding.contains(HttpHeaders.Values.DEFLATE)) {
+                deflateQ = Math.max(deflateQ, q);
+            }
+        }
+
+        if (gzipQ > 0.0f || deflateQ > 0.0f) {
+            return gzipQ >= deflateQ ? HttpHeaders.Values.GZIP : HttpHeaders.Values.DEFLATE;
+        }
+        if (starQ > 0.0f) {
+            if (gzipQ < 0.0f) {
+                return HttpHeaders.Values.GZIP;
+            }
+            if (deflateQ < 0.0f) {
+                return HttpHeaders.Values.DEFLATE;
+            }
+        }
+        return null;
+    }
 }
@@ -21,6 +21,21 @@ public class TransportMetrics {
     public final Histogram messagesReceivedSize;
     public final Meter messagesSent;
     public final Histogram messagesSentSize;
+    public final Meter pollsTimedOut;
+    public final Histogram messagesPerPoll;
+    /** Connections closed by the idle policy of the transport */
+    public final Meter connectionsReaped;
+    /** Max response size of streaming responses closed for reaching it, each one a reconnect */
+    public final Histogram maxResponseSizeReached;
+    /** Microseconds from Session.send() to the message being written, for a sample of the messages */
+    public final Histogram sendLatency;
+    /** Messages waiting in the queues of sessions, for a connection or for it to become writable */
+    public final Counter queuedMessages;
+    /** Size of the queued messages, see SockJsMessage.size() */
+    public final Counter queuedBytes;
+    public final MaxGauge maxQueueDepth;
+    /** Messages in a queue when it is flushed */
+    public final Histogram queueLengthAtFlush;
     private final String prefix;
     private final String transport;
 
@@ -32,9 +47,18 @@ public class TransportMetrics {
         connectionsOpen = metrics.counter(getName("connectionsOpen"));
         connectionsOpened = metrics.meter(getName("connectionsOpened"));
         messagesReceived = metrics.meter(getName("messagesReceived"));
-        messagesReceivedSize = metrics.histogram(getName("messagesReceivedSize"));
+        messagesReceivedSize = HdrReservoir.histogram(metrics, getName("messagesReceivedSize"));
         messagesSent = metrics.meter(getName("messagesSent"));
-        messagesSentSize = metrics.histogram(getName("messagesSentSize"));
+        messagesSentSize = HdrReservoir.histogram(metrics, getName("messagesSentSize"));
+        pollsTimedOut = metrics.meter(getName("pollsTimedOut"));
+        messagesPerPoll = HdrReservoir.histogram(metrics, getName("messagesPerPoll"));
+        connectionsReaped = metrics.meter(getName("connectionsReaped"));
+        maxResponseSizeReached = HdrReservoir.histogram(metrics, getName("maxResponseSizeReached"));
+        sendLatency = HdrReservoir.histogram(metrics, getName("sendLatency"));
+        queuedMessages = metrics.counter(getName("queuedMessages"));
+        queuedBytes = metrics.counter(getName("queuedBytes"));
+        maxQueueDepth = MaxGauge.gauge(metrics, getName("maxQueueDepth"));
+        queueLengthAtFlush = HdrReservoir.histogram(metrics, getName("queueLengthAtFlush"));
     }
 
     private String getName(String name) {
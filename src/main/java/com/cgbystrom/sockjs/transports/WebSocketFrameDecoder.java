@@ -0,0 +1,134 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFutureListener;
+import org.jboss.netty.channel.ChannelHandlerContext;
+import org.jboss.netty.handler.codec.frame.FrameDecoder;
+import org.jboss.netty.handler.codec.http.websocketx.*;
+
+/**
+ * Decodes client frames (RFC 6455), taking the place of Netty's decoder after the handshake.
+ *
+ * Netty's decoder validates the UTF-8 of every text frame and so rejects compressed ones, and
+ * it closes without a status code when a frame is too large. Here, RSV1 is passed on for
+ * PerMessageDeflateHandler to act on when permessage-deflate was negotiated, text is left for
+ * the transports to validate once a message is complete, and frames over the limit are answered
+ * with 1009 (message too big).
+ */
+public class WebSocketFrameDecoder extends FrameDecoder {
+    private static final int OPCODE_CONTINUATION = 0x0;
+    private static final int OPCODE_TEXT = 0x1;
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final long maxFramePayloadLength;
+    /** Whether RSV1 may be set, as it is by permessage-deflate */
+    private final boolean allowRsv1;
+    private boolean fragmented;
+    private boolean corrupted;
+
+    public WebSocketFrameDecoder(long maxFramePayloadLength, boolean allowRsv1) {
+        this.maxFramePayloadLength = maxFramePayloadLength;
+        this.allowRsv1 = allowRsv1;
+    }
+
+    @Override
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        if (corrupted) {
+            buffer.skipBytes(buffer.readableBytes());
+            return null;
+        }
+        if (buffer.readableBytes() < 2) {
+            return null;
+        }
+
+        final int start = buffer.readerIndex();
+        final byte b0 = buffer.getByte(start);
+        final byte b1 = buffer.getByte(start + 1);
+        final boolean finalFragment = (b0 & 0x80) != 0;
+        final int rsv = (b0 & 0x70) >> 4;
+        final int opcode = b0 & 0x0F;
+        final boolean control = (opcode & 0x8) != 0;
+
+        int headerLength = 2;
+        long payloadLength = b1 & 0x7F;
+        if (payloadLength == 126) {
+            headerLength += 2;
+            if (buffer.readableBytes() < headerLength) {
+                return null;
+            }
+            payloadLength = buffer.getUnsignedShort(start + 2);
+        } else if (payloadLength == 127) {
+            headerLength += 8;
+            if (buffer.readableBytes() < headerLength) {
+                return null;
+            }
+            payloadLength = buffer.getLong(start + 2);
+        }
+
+        if ((b1 & 0x80) == 0) {
+            return protocolViolation(channel, 1002, "Client frames must be masked");
+        }
+        final int allowedRsv = allowRsv1 ? PerMessageDeflateHandler.RSV1 : 0;
+        if ((rsv & ~allowedRsv) != 0 || (rsv != 0 && (control || opcode == OPCODE_CONTINUATION))) {
+            return protocolViolation(channel, 1002, "Unexpected RSV bits " + rsv);
+        }
+        if (control && (!finalFragment || payloadLength > 125)) {
+            return protocolViolation(channel, 1002, "Fragmented or oversized control frame");
+        }
+        if (!control && fragmented != (opcode == OPCODE_CONTINUATION)) {
+            return protocolViolation(channel, 1002, "Unexpected continuation state");
+        }
+        if (payloadLength < 0 || payloadLength > maxFramePayloadLength) {
+            return protocolViolation(channel, 1009, "Frame too large");
+        }
+        if (buffer.readableBytes() < headerLength + 4 + payloadLength) {
+            return null;
+        }
+
+        buffer.skipBytes(headerLength);
+        final int mask = buffer.readInt();
+        final int length = (int) payloadLength;
+        final ChannelBuffer payload = ChannelBuffers.buffer(length);
+        int i = 0;
+        for (; i + 4 <= length; i += 4) {
+            payload.writeInt(buffer.readInt() ^ mask);
+        }
+        for (; i < length; i++) {
+            payload.writeByte(buffer.readByte() ^ (mask >> (24 - 8 * (i & 3))));
+        }
+
+        if (!control) {
+            fragmented = !finalFragment;
+        }
+
+        switch (opcode) {
+            case OPCODE_CONTINUATION:
+                return new ContinuationWebSocketFrame(finalFragment, rsv, payload);
+            case OPCODE_TEXT:
+                return new TextWebSocketFrame(finalFragment, rsv, payload);
+            case OPCODE_BINARY:
+                return new BinaryWebSocketFrame(finalFragment, rsv, payload);
+            case OPCODE_CLOSE:
+                return new CloseWebSocketFrame(finalFragment, rsv, payload);
+            case OPCODE_PING:
+                return new PingWebSocketFrame(finalFragment, rsv, payload);
+            case OPCODE_PONG:
+                return new PongWebSocketFrame(finalFragment, rsv, payload);
+            default:
+                return protocolViolation(channel, 1002, "Unknown opcode " + opcode);
+        }
+    }
+
+    private Object protocolViolation(Channel channel, int statusCode, String reason) {
+        corrupted = true;
+        if (channel.isConnected()) {
+            channel.write(new CloseWebSocketFrame(statusCode, reason)).addListener(ChannelFutureListener.CLOSE);
+        }
+        return null;
+    }
+}
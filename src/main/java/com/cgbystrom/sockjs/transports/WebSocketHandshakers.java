@@ -0,0 +1,85 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.cgbystrom.sockjs.Service;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.HttpHeaders;
+import org.jboss.netty.handler.codec.http.HttpRequest;
+import org.jboss.netty.handler.codec.http.websocketx.*;
+import org.jboss.netty.handler.ssl.SslHandler;
+
+/**
+ * WebSocket handshakers of a service, shared by all its connections.
+ *
+ * A hybi handshaker (versions 7, 8 and 13) only holds settings, so one per version and
+ * extension setting is created up front instead of a factory and handshaker per upgrade.
+ * The location it is given never makes it into the response. Hixie-76 (version 0) responses
+ * carry the location, including the Host header and whether TLS is used, so those are
+ * still created per request.
+ *
+ * Shared handshakers record the subprotocol of the last handshake, so getSelectedSubprotocol()
+ * is meaningless on them. The subprotocol is sent in the response all the same.
+ */
+public class WebSocketHandshakers {
+    private static final WebSocketVersion[] HYBI_VERSIONS = { WebSocketVersion.V13, WebSocketVersion.V08, WebSocketVersion.V07 };
+
+    private final Service service;
+    private final long maxFramePayloadLength;
+    private final String subprotocols;
+    /** Indexed by HYBI_VERSIONS, then twice as many allowing extensions */
+    private final WebSocketServerHandshaker[] hybi = new WebSocketServerHandshaker[HYBI_VERSIONS.length * 2];
+    /** Only used for its version-agnostic error response */
+    private final WebSocketServerHandshakerFactory unsupported;
+
+    public WebSocketHandshakers(Service service) {
+        this.service = service;
+        this.maxFramePayloadLength = service.getMaxWebSocketMessageSize();
+        this.subprotocols = service.getWebSocketSubprotocols();
+        String location = "ws://localhost" + service.getUrl();
+        for (int i = 0; i < HYBI_VERSIONS.length; i++) {
+            hybi[i] = newHybiHandshaker(HYBI_VERSIONS[i], location, false);
+            hybi[HYBI_VERSIONS.length + i] = newHybiHandshaker(HYBI_VERSIONS[i], location, true);
+        }
+        unsupported = new WebSocketServerHandshakerFactory(location, subprotocols, false);
+    }
+
+    private WebSocketServerHandshaker newHybiHandshaker(WebSocketVersion version, String location, boolean allowExtensions) {
+        if (version == WebSocketVersion.V13) {
+            return new WebSocketServerHandshaker13(location, subprotocols, allowExtensions, maxFramePayloadLength);
+        } else if (version == WebSocketVersion.V08) {
+            return new WebSocketServerHandshaker08(location, subprotocols, allowExtensions, maxFramePayloadLength);
+        } else {
+            return new WebSocketServerHandshaker07(location, subprotocols, allowExtensions, maxFramePayloadLength);
+        }
+    }
+
+    /**
+     * @param path Path of the transport, relative to the service
+     * @param allowExtensions Whether an extension was negotiated, letting frames have RSV bits set
+     * @return Handshaker for the version the client asks for, null if that version is not supported
+     */
+    WebSocketServerHandshaker get(Channel channel, HttpRequest req, String path, boolean allowExtensions) {
+        String version = req.getHeader(HttpHeaders.Names.SEC_WEBSOCKET_VERSION);
+        if (version == null) {
+            return new WebSocketServerHandshaker00(getLocation(channel, req, path), subprotocols, maxFramePayloadLength);
+        }
+
+        int offset = allowExtensions ? HYBI_VERSIONS.length : 0;
+        if (version.equals(WebSocketVersion.V13.toHttpHeaderValue())) {
+            return hybi[offset];
+        } else if (version.equals(WebSocketVersion.V08.toHttpHeaderValue())) {
+            return hybi[offset + 1];
+        } else if (version.equals(WebSocketVersion.V07.toHttpHeaderValue())) {
+            return hybi[offset + 2];
+        }
+        return null;
+    }
+
+    void sendUnsupportedVersionResponse(Channel channel) {
+        unsupported.sendUnsupportedWebSocketVersionResponse(channel);
+    }
+
+    private String getLocation(Channel channel, HttpRequest req, String path) {
+        String scheme = channel.getPipeline().get(SslHandler.class) != null ? "wss://" : "ws://";
+        return scheme + req.getHeader(HttpHeaders.Names.HOST) + service.getUrl() + path;
+    }
+}
@@ -0,0 +1,114 @@
+package com.cgbystrom.sockjs.transports;
+
+import com.cgbystrom.sockjs.Service;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.Channel;
+import org.jboss.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.util.Timeout;
+import org.jboss.netty.util.TimerTask;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pings all WebSocket connections of a service from a single timeout, instead of one per connection.
+ *
+ * Every heartbeat interval, each connection is sent a ping carrying the time it was sent. The pong
+ * echoes it back, which gives the round trip time. Connections that go too many intervals in a row
+ * without a pong are considered dead and closed, whether or not they were writable for the pings.
+ */
+public class WebSocketHeartbeat implements TimerTask {
+    private static final InternalLogger logger = InternalLoggerFactory.getInstance(WebSocketHeartbeat.class);
+
+    private final Service service;
+    private final Set<Connection> connections = Collections.newSetFromMap(new ConcurrentHashMap<Connection, Boolean>());
+    private Timeout sweep;
+
+    public WebSocketHeartbeat(Service service) {
+        this.service = service;
+    }
+
+    /**
+     * Start pinging a connection once its handshake is done. Hixie-76 connections have no ping.
+     */
+    Connection register(Channel channel) {
+        Connection connection = new Connection(channel);
+        connections.add(connection);
+        scheduleSweep();
+        return connection;
+    }
+
+    void unregister(Connection connection) {
+        connections.remove(connection);
+    }
+
+    private synchronized void scheduleSweep() {
+        if (sweep == null && !connections.isEmpty()) {
+            sweep = service.getTimer().newTimeout(this, service.getHeartbeatInterval(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void run(Timeout timeout) throws Exception {
+        if (timeout.isCancelled()) {
+            return;
+        }
+
+        final int maxMissedPongs = service.getMaxMissedPongs();
+        final Service.Metrics metrics = service.getMetrics();
+        for (Connection connection : connections) {
+            if (!connection.channel.isConnected()) {
+                connections.remove(connection);
+            } else if (maxMissedPongs > 0 && connection.missedPongs.get() >= maxMissedPongs) {
+                if (logger.isDebugEnabled())
+                    logger.debug("No pong from " + connection.channel + " for " + maxMissedPongs + " pings, closing");
+                connections.remove(connection);
+                metrics.getDeadWebSocketsClosed().mark();
+                connection.channel.close();
+            } else {
+                // Counted even when no ping is written, a dead peer is what stops a connection being writable
+                connection.missedPongs.incrementAndGet();
+                if (connection.channel.isWritable()) {
+                    ChannelBuffer payload = ChannelBuffers.buffer(8);
+                    payload.writeLong(System.nanoTime());
+                    connection.channel.write(new PingWebSocketFrame(payload));
+                }
+            }
+        }
+
+        synchronized (this) {
+            sweep = null;
+        }
+        scheduleSweep();
+    }
+
+    /** Liveness of a single WebSocket connection */
+    class Connection {
+        private final Channel channel;
+        /** Intervals since the last pong */
+        private final AtomicInteger missedPongs = new AtomicInteger();
+
+        private Connection(Channel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Pongs are also accepted unsolicited, as a heartbeat from the client. Those carry no time of ours.
+         */
+        void pongReceived(ChannelBuffer payload) {
+            missedPongs.set(0);
+            if (payload.readableBytes() == 8) {
+                long roundTrip = System.nanoTime() - payload.getLong(payload.readerIndex());
+                if (roundTrip >= 0 && roundTrip < TimeUnit.MILLISECONDS.toNanos(service.getHeartbeatInterval()) * (service.getMaxMissedPongs() + 1)) {
+                    service.getMetrics().getWebSocketRoundTrip().update(TimeUnit.NANOSECONDS.toMicros(roundTrip));
+                }
+            }
+        }
+    }
+}
@@ -11,32 +11,31 @@ import com.cgbystrom.sockjs.*;
 import com.cgbystrom.sockjs.PreflightHandler;
 import org.codehaus.jackson.JsonParseException;
 import org.codehaus.jackson.map.JsonMappingException;
-import org.codehaus.jackson.map.ObjectMapper;
 import org.jboss.netty.buffer.ChannelBuffer;
-import org.jboss.netty.buffer.ChannelBufferInputStream;
 import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.handler.codec.http.websocketx.*;
-import org.jboss.netty.handler.ssl.SslHandler;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
-import org.jboss.netty.util.Timeout;
-import org.jboss.netty.util.TimerTask;
+import org.jboss.netty.util.CharsetUtil;
 
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
 
 // FIMXE: Mark as sharable?
 public class WebSocketTransport extends SimpleChannelHandler {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(WebSocketTransport.class);
-    private static final ObjectMapper mapper = new ObjectMapper();
 
     private WebSocketServerHandshaker handshaker;
     private final String path;
     private TransportMetrics transportMetrics;
     private Service service;
-    private Timeout pingPongFrameTimeout;
-    private Channel channel;
+    /** Set once the handshake is done, except for Hixie-76 which has no ping */
+    private WebSocketHeartbeat.Connection liveness;
+    private final SockJsMessageParser parser = new SockJsMessageParser();
+    /** Bytes received so far of the message being reassembled */
+    private int messageSize;
+    /** Whether continuation frames belong to a text message */
+    private boolean receivingText;
 
     public WebSocketTransport(String path, Service metadata) {
         this.path = path;
@@ -60,14 +59,17 @@ public class WebSocketTransport extends SimpleChannelHandler {
     public void channelDisconnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         // Metrics for connect is handled by ServiceRouter since we are not attached
         // to pipeline when channelConnected fires.
-        cancelHeartbeatTask();
-        channel = null;
+        if (liveness != null) {
+            service.getWebSocketHeartbeat().unregister(liveness);
+            liveness = null;
+        }
         transportMetrics.connectionsOpen.dec();
         super.channelDisconnected(ctx, e);
     }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        final long receivedAt = service.getTraceSampleInterval() > 0 ? System.nanoTime() : 0;
         Object msg = e.getMessage();
         if (msg instanceof HttpRequest) {
             handleHttpRequest(ctx, e.getChannel(), (HttpRequest) msg);
@@ -77,7 +79,7 @@ public class WebSocketTransport extends SimpleChannelHandler {
             if (wsf.getBinaryData() != null) {
                 transportMetrics.messagesReceivedSize.update(wsf.getBinaryData().readableBytes());
             }
-            handleWebSocketFrame(ctx, e.getChannel(), wsf);
+            handleWebSocketFrame(ctx, e.getChannel(), wsf, receivedAt);
         } else {
             throw new IOException("Unknown frame type: " + msg.getClass().getSimpleName());
         }
@@ -87,7 +89,8 @@ public class WebSocketTransport extends SimpleChannelHandler {
     public void writeRequested(ChannelHandlerContext ctx, final MessageEvent e) throws Exception {
         if (e.getMessage() instanceof Frame) {
             Frame f = (Frame) e.getMessage();
-            logger.debug("Write requested for " + f.getClass().getSimpleName());
+            if (logger.isDebugEnabled())
+                logger.debug("Write requested for " + f.getClass().getSimpleName());
             if (f instanceof Frame.CloseFrame) {
                 e.getFuture().addListener(new ChannelFutureListener() {
                     @Override
@@ -103,6 +106,7 @@ public class WebSocketTransport extends SimpleChannelHandler {
             transportMetrics.messagesSent.mark();
             transportMetrics.messagesSentSize.update(frame.readableBytes());
             TextWebSocketFrame message = new TextWebSocketFrame(frame);
+            f.traceStage(MessageTrace.Stage.WRAPPED);
             super.writeRequested(ctx, new DownstreamMessageEvent(e.getChannel(), e.getFuture(), message, e.getRemoteAddress()));
         } else {
             super.writeRequested(ctx, e);
@@ -154,29 +158,44 @@ public class WebSocketTransport extends SimpleChannelHandler {
         }
 
         // Handshake
-        String wsLocation = getWebSocketLocation(channel.getPipeline(), req);
-        WebSocketServerHandshakerFactory wsFactory = new WebSocketServerHandshakerFactory(wsLocation, null, false);
+        final long handshakeStart = Events.ENABLED ? System.nanoTime() : 0;
+        PerMessageDeflateHandler deflate = service.isWebSocketCompressionEnabled() ?
+                service.getPerMessageDeflate().negotiate(req.getHeader(PerMessageDeflate.SEC_WEBSOCKET_EXTENSIONS)) : null;
+        WebSocketHandshakers handshakers = service.getWebSocketHandshakers();
 
-        handshaker = wsFactory.newHandshaker(req);
+        handshaker = handshakers.get(channel, req, path, deflate != null);
         if (handshaker == null) {
-            wsFactory.sendUnsupportedWebSocketVersionResponse(ctx.getChannel());
+            handshakers.sendUnsupportedVersionResponse(ctx.getChannel());
+            if (Events.ENABLED) {
+                Events.RECORDER.webSocketHandshake("websocket", false, System.nanoTime() - handshakeStart);
+            }
         } else {
+            final boolean compress = deflate != null && handshaker.getVersion() != WebSocketVersion.V00;
+            if (compress) {
+                ctx.getPipeline().addBefore(ctx.getName(), "sockjs-websocket-deflate", deflate);
+            }
             handshaker.handshake(ctx.getChannel(), req).addListener(new ChannelFutureListener() {
                 @Override
                 public void operationComplete(ChannelFuture future) throws Exception {
+                    if (Events.ENABLED) {
+                        Events.RECORDER.webSocketHandshake("websocket", future.isSuccess(), System.nanoTime() - handshakeStart);
+                    }
                     if (future.isSuccess()) {
-                        WebSocketTransport.this.channel = ctx.getChannel();
+                        if (handshaker.getVersion() != WebSocketVersion.V00) {
+                            ctx.getPipeline().replace(WebSocket08FrameDecoder.class, "wsdecoder",
+                                    new WebSocketFrameDecoder(handshaker.getMaxFramePayloadLength(), compress));
+                            liveness = service.getWebSocketHeartbeat().register(ctx.getChannel());
+                        }
                         ctx.getPipeline().remove(ServiceRouter.class);
                         ctx.getPipeline().remove(PreflightHandler.class);
                         ctx.sendUpstream(new UpstreamChannelStateEvent(channel, ChannelState.CONNECTED, Boolean.TRUE));
-                        scheduleHeartbeatTask();
                     }
                 }
             });
         }
     }
 
-    private void handleWebSocketFrame(ChannelHandlerContext ctx, Channel channel, WebSocketFrame frame) throws IOException {
+    private void handleWebSocketFrame(ChannelHandlerContext ctx, Channel channel, WebSocketFrame frame, long receivedAt) throws IOException {
         // Check for closing frame
         if (frame instanceof CloseWebSocketFrame) {
             handshaker.close(ctx.getChannel(), (CloseWebSocketFrame) frame);
@@ -184,38 +203,34 @@ public class WebSocketTransport extends SimpleChannelHandler {
         } else if (frame instanceof PingWebSocketFrame) {
             ctx.getChannel().write(new PongWebSocketFrame(frame.getBinaryData()));
             return;
-        } else if (frame instanceof TextWebSocketFrame) {
-            // Send the uppercase string back.
-            String request = ((TextWebSocketFrame) frame).getText();
+        } else if (frame instanceof TextWebSocketFrame || (frame instanceof ContinuationWebSocketFrame && receivingText)) {
             ChannelBuffer payload = frame.getBinaryData();
+            if (frame instanceof TextWebSocketFrame) {
+                messageSize = 0;
+            }
+            receivingText = !frame.isFinalFragment();
 
             if (logger.isDebugEnabled()) {
-                logger.debug(String.format("Channel %s received '%s'", ctx.getChannel().getId(), request));
+                logger.debug(String.format("Channel %s received '%s'", ctx.getChannel().getId(), payload.toString(CharsetUtil.UTF_8)));
             }
 
-            if (frame.getBinaryData().readableBytes() == 0) {
+            messageSize += payload.readableBytes();
+            if (messageSize > service.getMaxWebSocketMessageSize()) {
+                receivingText = false;
+                handshaker.close(ctx.getChannel(), new CloseWebSocketFrame(1009, "Message too big"));
                 return;
             }
 
-            ChannelBufferInputStream cbis = new ChannelBufferInputStream(payload);
-            String[] messages;
-            if (payload.getByte(0) == '[') {
-                // decode array
-                messages = mapper.readValue(cbis, String[].class);
-            } else if (payload.getByte(0) == '"') {
-                // decode string
-                messages = new String[1];
-                messages[0] = mapper.readValue(cbis, String.class);
-            } else {
-                throw new IOException("Expected message as string or string[]");
-            }
-
-            for (String message : messages) {
+            // Messages of a fragmented array are passed on as soon as each one is complete
+            for (String message : parser.parse(payload, frame.isFinalFragment())) {
                 SockJsMessage jsMessage = new SockJsMessage(message);
+                service.traceReceived(jsMessage, receivedAt);
                 ctx.sendUpstream(new UpstreamMessageEvent(channel, jsMessage, channel.getRemoteAddress()));
             }
         } else if (frame instanceof PongWebSocketFrame) {
-            // Ignore
+            if (liveness != null) {
+                liveness.pongReceived(frame.getBinaryData());
+            }
         } else {
             logger.error("Unhandled frame type: " + frame.getClass().getSimpleName());
         }
@@ -230,39 +245,4 @@ public class WebSocketTransport extends SimpleChannelHandler {
             ctx.getChannel().write(res);
         }
     }
-
-    private String getWebSocketLocation(ChannelPipeline pipeline, HttpRequest req) {
-        boolean isSsl = pipeline.get(SslHandler.class) != null;
-        if (isSsl) {
-            return "wss://" + req.getHeader(HttpHeaders.Names.HOST) + path;
-        } else {
-            return "ws://" + req.getHeader(HttpHeaders.Names.HOST) + path;
-        }
-    }
-
-    private void scheduleHeartbeatTask() {
-        int interval = service.getHeartbeatInterval();
-        pingPongFrameTimeout = service.getTimer().newTimeout(new HeartbeatTimerTask(), interval, TimeUnit.MILLISECONDS);
-    }
-
-    private void cancelHeartbeatTask() {
-        if (pingPongFrameTimeout != null) {
-            pingPongFrameTimeout.cancel();
-        }
-    }
-
-    /**
-     * Sends a Web Socket ping frame to the client to ensure TCP connection stays alive.
-     * Especially important on the public internet where many can/will interfere, such as proxies/load balancers.
-     * */
-    private class HeartbeatTimerTask implements TimerTask {
-        @Override
-        public void run(Timeout timeout) throws Exception {
-            if (!timeout.isCancelled() && channel != null && channel.isWritable()) {
-                logger.debug("Sending heartbeat/ping frame");
-                channel.write(new PingWebSocketFrame());
-                scheduleHeartbeatTask();
-            }
-        }
-    }
 }
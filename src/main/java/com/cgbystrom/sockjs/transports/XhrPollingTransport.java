@@ -6,14 +6,12 @@ import org.jboss.netty.channel.*;
 import org.jboss.netty.handler.codec.http.*;
 import org.jboss.netty.logging.InternalLogger;
 import org.jboss.netty.logging.InternalLoggerFactory;
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Names.*;
-import static org.jboss.netty.handler.codec.http.HttpHeaders.Values.*;
 
-public class XhrPollingTransport extends BaseTransport {
+public class XhrPollingTransport extends PollingTransport {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(XhrPollingTransport.class);
 
-    public XhrPollingTransport(Service.Metrics metrics) {
-        super(metrics.getXhrPolling());
+    public XhrPollingTransport(Service service) {
+        super(service, service.getMetrics().getXhrPolling());
     }
 
     @Override
@@ -22,11 +20,9 @@ public class XhrPollingTransport extends BaseTransport {
             Frame frame = (Frame) e.getMessage();
             ChannelBuffer content = Frame.encode(frame, true);
             HttpResponse response = createResponse(CONTENT_TYPE_JAVASCRIPT);
-            response.setHeader(CONTENT_LENGTH, content.readableBytes());
-            response.setHeader(CONNECTION, CLOSE);
             response.setContent(content);
-            e.getFuture().addListener(ChannelFutureListener.CLOSE);
-            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), response, e.getRemoteAddress()));
+            frame.traceStage(MessageTrace.Stage.WRAPPED);
+            writeResponse(ctx, e, response);
         } else {
             super.writeRequested(ctx, e);
         }
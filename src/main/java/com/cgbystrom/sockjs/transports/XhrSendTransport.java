@@ -20,11 +20,16 @@ public class XhrSendTransport extends SimpleChannelUpstreamHandler {
     private static final ObjectMapper MAPPER = new ObjectMapper();
 
     private boolean isJsonpEnabled = false;
+    private Service service;
     private TransportMetrics transportMetrics;
 
-    public XhrSendTransport(Service.Metrics metrics, boolean isJsonpEnabled) {
+    /** Save a reference to the initiating HTTP request, if it has been received yet */
+    private HttpRequest request;
+
+    public XhrSendTransport(Service service, boolean isJsonpEnabled) {
         this.isJsonpEnabled = isJsonpEnabled;
-        this.transportMetrics = metrics.getXhrSend();
+        this.service = service;
+        this.transportMetrics = service.getMetrics().getXhrSend();
     }
 
     @Override
@@ -52,10 +57,11 @@ public class XhrSendTransport extends SimpleChannelUpstreamHandler {
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
-        HttpRequest request = (HttpRequest)e.getMessage();
+        final long receivedAt = service.getTraceSampleInterval() > 0 ? System.nanoTime() : 0;
+        request = (HttpRequest)e.getMessage();
 
         if (request.getContent().readableBytes() == 0) {
-            BaseTransport.respond(e.getChannel(), INTERNAL_SERVER_ERROR, "Payload expected.");
+            respond(ctx, INTERNAL_SERVER_ERROR, "Payload expected.");
             return;
         }
 
@@ -74,7 +80,7 @@ public class XhrSendTransport extends SimpleChannelUpstreamHandler {
             QueryStringDecoder decoder = new QueryStringDecoder("?" + request.getContent().toString(CharsetUtil.UTF_8));
             List<String> d = decoder.getParameters().get("d");
             if (d == null) {
-                BaseTransport.respond(e.getChannel(), INTERNAL_SERVER_ERROR, "Payload expected.");
+                respond(ctx, INTERNAL_SERVER_ERROR, "Payload expected.");
                 return;
             }
             decodedContent = d.get(0);
@@ -83,29 +89,36 @@ public class XhrSendTransport extends SimpleChannelUpstreamHandler {
         }
 
         if (decodedContent.length() == 0) {
-            BaseTransport.respond(e.getChannel(), INTERNAL_SERVER_ERROR, "Payload expected.");
+            respond(ctx, INTERNAL_SERVER_ERROR, "Payload expected.");
             return;
         }
 
         String[] messages = MAPPER.readValue(decodedContent, String[].class);
         for (String message : messages) {
             SockJsMessage jsMessage = new SockJsMessage(message);
+            service.traceReceived(jsMessage, receivedAt);
             ctx.sendUpstream(new UpstreamMessageEvent(e.getChannel(), jsMessage, e.getRemoteAddress()));
         }
 
         if (isJsonpEnabled) {
-            BaseTransport.respond(e.getChannel(), OK, "ok");
+            respond(ctx, OK, "ok");
         } else {
-            BaseTransport.respond(e.getChannel(), NO_CONTENT, "");
+            respond(ctx, NO_CONTENT, "");
         }
     }
 
+    /** Respond to the send request and hand the connection back to the ServiceRouter */
+    private void respond(ChannelHandlerContext ctx, HttpResponseStatus status, String message) throws Exception {
+        BaseTransport.resetPipeline(ctx.getPipeline(), this, transportMetrics);
+        BaseTransport.respond(ctx.getChannel(), request, status, message);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         if (e.getCause() instanceof JsonParseException) {
-            BaseTransport.respond(e.getChannel(), HttpResponseStatus.INTERNAL_SERVER_ERROR, "Broken JSON encoding.");
+            respond(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR, "Broken JSON encoding.");
         } else if (e.getCause() instanceof SessionHandler.NotFoundException) {
-            BaseTransport.respond(e.getChannel(), HttpResponseStatus.NOT_FOUND, "Session not found. Cannot send data to non-existing session.");
+            respond(ctx, HttpResponseStatus.NOT_FOUND, "Session not found. Cannot send data to non-existing session.");
         } else {
             super.exceptionCaught(ctx, e);
         }
@@ -1,6 +1,7 @@
 package com.cgbystrom.sockjs.transports;
 
 import com.cgbystrom.sockjs.Frame;
+import com.cgbystrom.sockjs.MessageTrace;
 import com.cgbystrom.sockjs.Service;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.*;
@@ -11,8 +12,8 @@ import org.jboss.netty.logging.InternalLoggerFactory;
 public class XhrStreamingTransport extends StreamingTransport {
     private static final InternalLogger logger = InternalLoggerFactory.getInstance(XhrStreamingTransport.class);
 
-    public XhrStreamingTransport(Service.Metrics metrics, int maxResponseSize) {
-        super(metrics.getXhrStreaming(), maxResponseSize);
+    public XhrStreamingTransport(Service service) {
+        super(service, service.getMetrics().getXhrStreaming());
     }
 
     @Override
@@ -24,8 +25,7 @@ public class XhrStreamingTransport extends StreamingTransport {
 
                 // IE requires 2KB prefix:
                 // http://blogs.msdn.com/b/ieinternals/archive/2010/04/06/comet-streaming-in-internet-explorer-with-xmlhttprequest-and-xdomainrequest.aspx
-                DefaultHttpChunk message = new DefaultHttpChunk(Frame.encode(Frame.preludeFrame(), true));
-                ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), Channels.future(e.getChannel()), message, e.getRemoteAddress()));
+                writeChunk(ctx, e, Channels.future(e.getChannel()), Frame.encode(Frame.preludeFrame(), true));
             }
             final Frame frame = (Frame) e.getMessage();
             ChannelBuffer content = Frame.encode(frame, true);
@@ -34,7 +34,8 @@ public class XhrStreamingTransport extends StreamingTransport {
                 e.getFuture().addListener(ChannelFutureListener.CLOSE);
             }
 
-            ctx.sendDownstream(new DownstreamMessageEvent(e.getChannel(), e.getFuture(), new DefaultHttpChunk(content), e.getRemoteAddress()));
+            frame.traceStage(MessageTrace.Stage.WRAPPED);
+            writeChunk(ctx, e, e.getFuture(), content);
             logResponseSize(e.getChannel(), content);
         } else {
             super.writeRequested(ctx, e);
@@ -0,0 +1,71 @@
+package com.cgbystrom.sockjs.transports;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.handler.codec.compression.CompressionException;
+import org.jboss.netty.util.internal.jzlib.JZlib;
+import org.jboss.netty.util.internal.jzlib.ZStream;
+
+import java.util.Arrays;
+
+/**
+ * Deflate helpers on top of the jzlib bundled with Netty, which unlike java.util.zip
+ * can sync flush and choose window bits on Java 6.
+ */
+final class Zlib {
+    private Zlib() {
+    }
+
+    /**
+     * @param wrapper JZlib.W_NONE for raw deflate, JZlib.W_ZLIB or JZlib.W_GZIP
+     */
+    static ZStream newDeflater(int level, int windowBits, int memLevel, Enum<?> wrapper) {
+        ZStream z = new ZStream();
+        int rc = z.deflateInit(level, windowBits, memLevel, wrapper);
+        if (rc != JZlib.Z_OK) {
+            throw new CompressionException("Failed to initialize deflater: " + rc);
+        }
+        return z;
+    }
+
+    /**
+     * Compress all of the given input and flush it.
+     *
+     * @param flush JZlib.Z_SYNC_FLUSH, JZlib.Z_FULL_FLUSH or JZlib.Z_FINISH to end the stream
+     */
+    static ChannelBuffer deflate(ZStream z, ChannelBuffer in, int flush) {
+        int length = in.readableBytes();
+        if (in.hasArray()) {
+            z.next_in = in.array();
+            z.next_in_index = in.arrayOffset() + in.readerIndex();
+        } else {
+            z.next_in = new byte[length];
+            z.next_in_index = 0;
+            in.getBytes(in.readerIndex(), z.next_in);
+        }
+        z.avail_in = length;
+
+        // Room for incompressible input, block headers and the flush, like zlib's deflateBound()
+        byte[] out = new byte[length + (length >>> 12) + (length >>> 14) + 32];
+        z.next_out = out;
+        z.next_out_index = 0;
+        try {
+            for (;;) {
+                z.avail_out = out.length - z.next_out_index;
+                int rc = z.deflate(flush);
+                if (rc != JZlib.Z_OK && rc != JZlib.Z_BUF_ERROR && rc != JZlib.Z_STREAM_END) {
+                    throw new CompressionException("Deflate failed: " + rc + " (" + z.msg + ")");
+                }
+                if (z.avail_out > 0) {
+                    break;
+                }
+                out = Arrays.copyOf(out, out.length * 2);
+                z.next_out = out;
+            }
+            return ChannelBuffers.wrappedBuffer(out, 0, z.next_out_index);
+        } finally {
+            z.next_in = null;
+            z.next_out = null;
+        }
+    }
+}
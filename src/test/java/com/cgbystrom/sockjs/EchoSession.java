@@ -1,9 +1,10 @@
 package com.cgbystrom.sockjs;
 
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class EchoSession implements SessionCallback
+public class EchoSession implements BinarySessionCallback
 {
     private static final Logger logger = LoggerFactory.getLogger(EchoSession.class);
     private Session session;
@@ -26,6 +27,12 @@ public class EchoSession implements SessionCallback
         session.send(message);
     }
 
+    @Override
+    public void onMessage(ChannelBuffer message) {
+        logger.debug("Echoing back binary message");
+        session.send(message);
+    }
+
     @Override
     public boolean onError(Throwable exception) {
         logger.error("Error", exception);
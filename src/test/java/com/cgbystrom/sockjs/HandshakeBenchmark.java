@@ -0,0 +1,113 @@
+package com.cgbystrom.sockjs;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.junit.Ignore;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.netty.channel.Channels.pipeline;
+
+/**
+ * Measures WebSocket handshakes per second, as seen during a reconnect storm.
+ *
+ * Every round connects, upgrades to a WebSocket and disconnects again, for both the raw
+ * WebSocket and the SockJS WebSocket transport. Uses local channels like the StressTest,
+ * so the numbers exclude real TCP setup costs and only show the overhead inside Netty
+ * and sockjs-netty.
+ */
+@Ignore
+public class HandshakeBenchmark {
+    private static final int PORT = 8003;
+    private static final int NUM_ROUNDS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLogger.setLevel(Level.INFO);
+        InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
+
+        new StressTestServer(PORT).start();
+
+        ClientBootstrap bootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("codec", new HttpClientCodec());
+                pipeline.addLast("handler", new UpgradeHandler());
+                return pipeline;
+            }
+        });
+
+        // Warm up
+        run(bootstrap, false, NUM_ROUNDS / 10);
+        run(bootstrap, true, NUM_ROUNDS / 10);
+
+        System.out.println(String.format("Raw WebSocket     %8.0f handshakes/s", run(bootstrap, false, NUM_ROUNDS)));
+        System.out.println(String.format("SockJS WebSocket  %8.0f handshakes/s", run(bootstrap, true, NUM_ROUNDS)));
+
+        bootstrap.releaseExternalResources();
+        System.exit(0);
+    }
+
+    private static double run(ClientBootstrap bootstrap, boolean sockJs, int rounds) throws Exception {
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            String uri = sockJs ? "/stresstest/000/" + UUID.randomUUID() + "/websocket" : "/stresstest/websocket";
+            handshake(bootstrap, uri);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        return rounds / (elapsed / 1000000000.0);
+    }
+
+    private static void handshake(ClientBootstrap bootstrap, String uri) throws Exception {
+        Channel channel = bootstrap.connect(new LocalAddress(PORT)).awaitUninterruptibly().getChannel();
+
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+        request.setHeader(HttpHeaders.Names.HOST, "localhost");
+        request.setHeader(HttpHeaders.Names.UPGRADE, HttpHeaders.Values.WEBSOCKET);
+        request.setHeader(HttpHeaders.Names.CONNECTION, HttpHeaders.Values.UPGRADE);
+        request.setHeader(HttpHeaders.Names.SEC_WEBSOCKET_KEY, "dGhlIHNhbXBsZSBub25jZQ==");
+        request.setHeader(HttpHeaders.Names.SEC_WEBSOCKET_VERSION, "13");
+        channel.write(request);
+
+        UpgradeHandler handler = channel.getPipeline().get(UpgradeHandler.class);
+        HttpResponse response = handler.responses.poll(5, TimeUnit.SECONDS);
+        if (response == null) {
+            throw new IllegalStateException("No response for " + uri);
+        }
+        if (!response.getStatus().equals(HttpResponseStatus.SWITCHING_PROTOCOLS)) {
+            throw new IllegalStateException("Unexpected response for " + uri + ": " + response.getStatus());
+        }
+
+        channel.close().awaitUninterruptibly();
+    }
+
+    private static class UpgradeHandler extends SimpleChannelUpstreamHandler {
+        private final BlockingQueue<HttpResponse> responses = new LinkedBlockingQueue<HttpResponse>();
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if (e.getMessage() instanceof HttpResponse) {
+                responses.offer((HttpResponse) e.getMessage());
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
+            // WebSocket frames following the upgrade are not HTTP, the channel is closed right away anyway
+        }
+    }
+}
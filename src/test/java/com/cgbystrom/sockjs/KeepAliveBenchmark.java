@@ -0,0 +1,142 @@
+package com.cgbystrom.sockjs;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.Ignore;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.netty.channel.Channels.pipeline;
+
+/**
+ * Compares requests per second for xhr polling and xhr_send with and without HTTP keep-alive.
+ *
+ * Each round sends one message through xhr_send and picks up the echo with an xhr poll.
+ * Without keep-alive every request pays for a new connection.
+ *
+ * Uses local channels like the StressTest, so the numbers exclude real TCP setup costs
+ * and only show the overhead inside Netty and sockjs-netty.
+ */
+@Ignore
+public class KeepAliveBenchmark {
+    private static final int PORT = 8002;
+    private static final int NUM_ROUNDS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLogger.setLevel(Level.INFO);
+        InternalLoggerFactory.setDefaultFactory(new Slf4JLoggerFactory());
+
+        new StressTestServer(PORT).start();
+
+        ClientBootstrap bootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("codec", new HttpClientCodec());
+                pipeline.addLast("aggregator", new HttpChunkAggregator(64 * 1024));
+                pipeline.addLast("handler", new ResponseHandler());
+                return pipeline;
+            }
+        });
+
+        // Warm up
+        run(bootstrap, true, NUM_ROUNDS / 10);
+        run(bootstrap, false, NUM_ROUNDS / 10);
+
+        System.out.println(String.format("Connection: close  %8.0f req/s", run(bootstrap, false, NUM_ROUNDS)));
+        System.out.println(String.format("Keep-alive         %8.0f req/s", run(bootstrap, true, NUM_ROUNDS)));
+
+        bootstrap.releaseExternalResources();
+        System.exit(0);
+    }
+
+    private static double run(ClientBootstrap bootstrap, boolean keepAlive, int rounds) throws Exception {
+        final String base = "/stresstest/000/" + UUID.randomUUID() + "/";
+        final Client client = new Client(bootstrap, keepAlive);
+        client.request(base + "xhr", null, "o\n");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            client.request(base + "xhr_send", "[\"x\"]", "");
+            client.request(base + "xhr", null, "a[\"x\"]\n");
+        }
+        long elapsed = System.nanoTime() - start;
+        client.close();
+
+        return rounds * 2 / (elapsed / 1000000000.0);
+    }
+
+    private static class Client {
+        private final ClientBootstrap bootstrap;
+        private final boolean keepAlive;
+        private Channel channel;
+
+        Client(ClientBootstrap bootstrap, boolean keepAlive) {
+            this.bootstrap = bootstrap;
+            this.keepAlive = keepAlive;
+        }
+
+        void request(String uri, String body, String expected) throws Exception {
+            if (channel == null || !channel.isConnected()) {
+                channel = bootstrap.connect(new LocalAddress(PORT)).awaitUninterruptibly().getChannel();
+            }
+
+            HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri);
+            request.setHeader(HttpHeaders.Names.HOST, "localhost");
+            if (body != null) {
+                ChannelBuffer content = ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8);
+                request.setContent(content);
+            }
+            request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, request.getContent().readableBytes());
+            HttpHeaders.setKeepAlive(request, keepAlive);
+            channel.write(request);
+
+            ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+            HttpResponse response = handler.responses.poll(5, TimeUnit.SECONDS);
+            if (response == null) {
+                throw new IllegalStateException("No response for " + uri);
+            }
+
+            String content = response.getContent().toString(CharsetUtil.UTF_8);
+            if (!content.equals(expected)) {
+                throw new IllegalStateException("Unexpected response for " + uri + ": " + content);
+            }
+
+            if (!keepAlive) {
+                channel.getCloseFuture().awaitUninterruptibly();
+                channel = null;
+            }
+        }
+
+        void close() {
+            if (channel != null) {
+                channel.close().awaitUninterruptibly();
+            }
+        }
+    }
+
+    private static class ResponseHandler extends SimpleChannelUpstreamHandler {
+        private final BlockingQueue<HttpResponse> responses = new LinkedBlockingQueue<HttpResponse>();
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            responses.offer((HttpResponse) e.getMessage());
+        }
+    }
+}
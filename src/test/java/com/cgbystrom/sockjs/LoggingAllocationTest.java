@@ -0,0 +1,273 @@
+package com.cgbystrom.sockjs;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.handler.codec.http.websocketx.TextWebSocketFrame;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshaker;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketClientHandshakerFactory;
+import org.jboss.netty.handler.codec.http.websocketx.WebSocketVersion;
+import org.jboss.netty.logging.AbstractInternalLogger;
+import org.jboss.netty.logging.InternalLogger;
+import org.jboss.netty.logging.InternalLoggerFactory;
+import org.jboss.netty.logging.Slf4JLoggerFactory;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Queue;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.netty.channel.Channels.pipeline;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Echoing messages with debug logging disabled must not build a single debug message.
+ *
+ * Every logger of sockjs-netty reports debug as disabled, and each debug() call that reaches one anyway
+ * is recorded. Constant messages cost nothing, but telling them apart needs more than the message,
+ * so the hot path guards every debug() call and any call at all fails the test. Sessions are opened
+ * for each test, so what is logged once per session is counted as well.
+ *
+ * Uses local channels like the StressTest.
+ */
+public class LoggingAllocationTest {
+    private static final int PORT = 8003;
+    private static final int NUM_ROUNDS = 200;
+
+    private static final Queue<String> debugCalls = new ConcurrentLinkedQueue<String>();
+    private static final Set<String> countingLoggers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private static ClientBootstrap bootstrap;
+
+    static {
+        // Loggers are created as the classes load, so this has to come before any class of sockjs-netty
+        InternalLoggerFactory.setDefaultFactory(new CountingLoggerFactory(new Slf4JLoggerFactory()));
+    }
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        Logger rootLogger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+        rootLogger.setLevel(Level.INFO);
+
+        Class.forName(SessionHandler.class.getName());
+        assertTrue("SessionHandler was loaded before the counting loggers were installed",
+                countingLoggers.contains(SessionHandler.class.getName()));
+
+        new StressTestServer(PORT).start();
+
+        bootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("decoder", new HttpResponseDecoder());
+                pipeline.addLast("aggregator", new HttpChunkAggregator(64 * 1024));
+                pipeline.addLast("encoder", new HttpRequestEncoder());
+                pipeline.addLast("handler", new ResponseHandler());
+                return pipeline;
+            }
+        });
+    }
+
+    @AfterClass
+    public static void stopClient() {
+        bootstrap.releaseExternalResources();
+    }
+
+    @Before
+    public void clearDebugCalls() {
+        debugCalls.clear();
+    }
+
+    @Test
+    public void xhr() throws Exception {
+        final String base = "/stresstest/000/" + UUID.randomUUID() + "/";
+        final Channel channel = bootstrap.connect(new LocalAddress(PORT)).awaitUninterruptibly().getChannel();
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+
+        request(channel, handler, base + "xhr", null, "o\n");
+        for (int i = 0; i < NUM_ROUNDS; i++) {
+            request(channel, handler, base + "xhr_send", "[\"x\"]", "");
+            request(channel, handler, base + "xhr", null, "a[\"x\"]\n");
+        }
+        channel.close().awaitUninterruptibly();
+
+        assertNoDebugCalls();
+    }
+
+    @Test
+    public void webSocket() throws Exception {
+        final Channel channel = connectWebSocket("/stresstest/000/" + UUID.randomUUID() + "/websocket");
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+
+        expect(handler, "o");
+        for (int i = 0; i < NUM_ROUNDS; i++) {
+            channel.write(new TextWebSocketFrame("[\"x\"]"));
+            expect(handler, "a[\"x\"]");
+        }
+        channel.close().awaitUninterruptibly();
+
+        assertNoDebugCalls();
+    }
+
+    @Test
+    public void rawWebSocket() throws Exception {
+        final Channel channel = connectWebSocket("/stresstest/websocket");
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+
+        for (int i = 0; i < NUM_ROUNDS; i++) {
+            channel.write(new TextWebSocketFrame("x"));
+            expect(handler, "x");
+        }
+        channel.close().awaitUninterruptibly();
+
+        assertNoDebugCalls();
+    }
+
+    private static void assertNoDebugCalls() {
+        assertEquals("Debug messages built with debug disabled: " + debugCalls, 0, debugCalls.size());
+    }
+
+    private static void request(Channel channel, ResponseHandler handler, String uri, String body, String expected) throws Exception {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.POST, uri);
+        request.setHeader(HttpHeaders.Names.HOST, "localhost");
+        if (body != null) {
+            request.setContent(ChannelBuffers.copiedBuffer(body, CharsetUtil.UTF_8));
+        }
+        request.setHeader(HttpHeaders.Names.CONTENT_LENGTH, request.getContent().readableBytes());
+        channel.write(request);
+
+        HttpResponse response = (HttpResponse) handler.poll(uri);
+        assertEquals(uri, expected, response.getContent().toString(CharsetUtil.UTF_8));
+    }
+
+    private static Channel connectWebSocket(String path) throws Exception {
+        final Channel channel = bootstrap.connect(new LocalAddress(PORT)).awaitUninterruptibly().getChannel();
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+        channel.getPipeline().remove("aggregator");
+        handler.handshaker = new WebSocketClientHandshakerFactory().newHandshaker(
+                new URI("ws://localhost" + path), WebSocketVersion.V13, null, false, new HashMap<String, String>());
+        handler.handshaker.handshake(channel).awaitUninterruptibly();
+        return channel;
+    }
+
+    private static void expect(ResponseHandler handler, String expected) throws Exception {
+        assertEquals(expected, ((TextWebSocketFrame) handler.poll("websocket")).getText());
+    }
+
+    private static class ResponseHandler extends SimpleChannelUpstreamHandler {
+        private final BlockingQueue<Object> messages = new LinkedBlockingQueue<Object>();
+        /** Finished as the response arrives, the frames following it are in the same buffer */
+        private volatile WebSocketClientHandshaker handshaker;
+
+        Object poll(String what) throws InterruptedException {
+            Object message = messages.poll(5, TimeUnit.SECONDS);
+            if (message == null) {
+                throw new IllegalStateException("Nothing received for " + what);
+            }
+            return message;
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            if (handshaker != null && !handshaker.isHandshakeComplete()) {
+                handshaker.finishHandshake(ctx.getChannel(), (HttpResponse) e.getMessage());
+                return;
+            }
+            messages.offer(e.getMessage());
+        }
+    }
+
+    private static class CountingLoggerFactory extends InternalLoggerFactory {
+        private final InternalLoggerFactory factory;
+
+        CountingLoggerFactory(InternalLoggerFactory factory) {
+            this.factory = factory;
+        }
+
+        @Override
+        public InternalLogger newInstance(String name) {
+            countingLoggers.add(name);
+            return new CountingLogger(factory.newInstance(name), name.startsWith("com.cgbystrom.sockjs"));
+        }
+    }
+
+    /** Debug disabled, recording the debug messages of sockjs-netty that get built all the same */
+    private static class CountingLogger extends AbstractInternalLogger {
+        private final InternalLogger logger;
+        private final boolean isCounted;
+
+        CountingLogger(InternalLogger logger, boolean isCounted) {
+            this.logger = logger;
+            this.isCounted = isCounted;
+        }
+
+        public boolean isDebugEnabled() {
+            return false;
+        }
+
+        public boolean isInfoEnabled() {
+            return logger.isInfoEnabled();
+        }
+
+        public boolean isWarnEnabled() {
+            return logger.isWarnEnabled();
+        }
+
+        public boolean isErrorEnabled() {
+            return logger.isErrorEnabled();
+        }
+
+        public void debug(String msg) {
+            if (isCounted) {
+                debugCalls.add(msg);
+            }
+        }
+
+        public void debug(String msg, Throwable cause) {
+            debug(msg);
+        }
+
+        public void info(String msg) {
+            logger.info(msg);
+        }
+
+        public void info(String msg, Throwable cause) {
+            logger.info(msg, cause);
+        }
+
+        public void warn(String msg) {
+            logger.warn(msg);
+        }
+
+        public void warn(String msg, Throwable cause) {
+            logger.warn(msg, cause);
+        }
+
+        public void error(String msg) {
+            logger.error(msg);
+        }
+
+        public void error(String msg, Throwable cause) {
+            logger.error(msg, cause);
+        }
+    }
+}
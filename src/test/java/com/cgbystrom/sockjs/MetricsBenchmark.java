@@ -0,0 +1,77 @@
+package com.cgbystrom.sockjs;
+
+import com.cgbystrom.sockjs.transports.TransportMetrics;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import org.junit.Ignore;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Measures what the metrics of a single write cost, messagesSent.mark() plus messagesSentSize.update(),
+ * with one thread per core (or as many as given) writing like the I/O workers do.
+ *
+ * Compares the plain Codahale metrics, which TransportMetrics used to create, with TransportMetrics.
+ */
+@Ignore
+public class MetricsBenchmark {
+    private static final int WRITES_PER_THREAD = 2000000;
+
+    public static void main(String[] args) throws Exception {
+        final int threads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+
+        for (int round = 0; round < 3; round++) {
+            MetricRegistry registry = new MetricRegistry();
+            Meter meter = registry.meter("codahale.messagesSent");
+            Histogram histogram = registry.histogram("codahale.messagesSentSize");
+            report("Codahale        ", threads, run(threads, meter, histogram), histogram);
+
+            TransportMetrics tm = new TransportMetrics("benchmark", "xhrStreaming", new MetricRegistry());
+            report("TransportMetrics", threads, run(threads, tm.messagesSent, tm.messagesSentSize), tm.messagesSentSize);
+        }
+    }
+
+    private static long run(int threads, final Meter meter, final Histogram histogram) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            final long seed = i;
+            new Thread() {
+                @Override
+                public void run() {
+                    // Message sizes, mostly small with a long tail
+                    final Random random = new Random(seed);
+                    final int[] sizes = new int[1024];
+                    for (int j = 0; j < sizes.length; j++) {
+                        sizes[j] = 16 + (int) Math.abs(random.nextGaussian() * 200) + (random.nextInt(100) == 0 ? 64 * 1024 : 0);
+                    }
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int j = 0; j < WRITES_PER_THREAD; j++) {
+                        meter.mark();
+                        histogram.update(sizes[j & (sizes.length - 1)]);
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    private static void report(String name, int threads, long elapsed, Histogram histogram) {
+        Snapshot snapshot = histogram.getSnapshot();
+        System.out.println(String.format("%s %2d threads %7.1f ns/write   p50 %6.0f p99 %6.0f max %6d",
+                name, threads, (double) elapsed / WRITES_PER_THREAD, snapshot.getMedian(),
+                snapshot.get99thPercentile(), snapshot.getMax()));
+    }
+}
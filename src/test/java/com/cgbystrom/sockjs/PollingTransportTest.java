@@ -0,0 +1,148 @@
+package com.cgbystrom.sockjs;
+
+import org.jboss.netty.bootstrap.ClientBootstrap;
+import org.jboss.netty.bootstrap.ServerBootstrap;
+import org.jboss.netty.channel.*;
+import org.jboss.netty.channel.local.DefaultLocalClientChannelFactory;
+import org.jboss.netty.channel.local.DefaultLocalServerChannelFactory;
+import org.jboss.netty.channel.local.LocalAddress;
+import org.jboss.netty.handler.codec.http.*;
+import org.jboss.netty.util.CharsetUtil;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.jboss.netty.channel.Channels.pipeline;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Polls over persistent connections, where each response hands the connection back to the ServiceRouter.
+ *
+ * Uses local channels like the StressTest.
+ */
+public class PollingTransportTest {
+    private static final int PORT = 8004;
+
+    private static Service service;
+    private static ServerBootstrap serverBootstrap;
+    private static ClientBootstrap bootstrap;
+
+    @BeforeClass
+    public static void startServer() throws Exception {
+        final ServiceRouter router = new ServiceRouter();
+        service = new Service("/echo", new SessionCallbackFactory() {
+            @Override
+            public SessionCallback getSession(String id) throws Exception {
+                return new EchoSession();
+            }
+        });
+        service.setSessionTimeout(1);
+        service.setPollHoldTimeout(200);
+        router.registerService(service);
+
+        serverBootstrap = new ServerBootstrap(new DefaultLocalServerChannelFactory());
+        serverBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("decoder", new HttpRequestDecoder());
+                pipeline.addLast("chunkAggregator", new HttpChunkAggregator(130 * 1024));
+                pipeline.addLast("encoder", new HttpResponseEncoder());
+                pipeline.addLast("router", router);
+                return pipeline;
+            }
+        });
+        serverBootstrap.bind(new LocalAddress(PORT));
+
+        bootstrap = new ClientBootstrap(new DefaultLocalClientChannelFactory());
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = pipeline();
+                pipeline.addLast("decoder", new HttpResponseDecoder());
+                pipeline.addLast("aggregator", new HttpChunkAggregator(64 * 1024));
+                pipeline.addLast("encoder", new HttpRequestEncoder());
+                pipeline.addLast("handler", new ResponseHandler());
+                return pipeline;
+            }
+        });
+    }
+
+    @AfterClass
+    public static void stop() {
+        bootstrap.releaseExternalResources();
+        serverBootstrap.releaseExternalResources();
+    }
+
+    /** Sessions of polls rejected before they got a channel must still time out */
+    @Test
+    public void rejectedJsonpSessionsTimeOut() throws Exception {
+        final Channel channel = connect();
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+
+        for (int i = 0; i < 50; i++) {
+            final String uri = "/echo/000/rejected" + i + "/jsonp";
+            channel.write(request(HttpMethod.GET, uri));
+            assertEquals(uri, HttpResponseStatus.INTERNAL_SERVER_ERROR, handler.poll(uri).getStatus());
+        }
+        channel.close().awaitUninterruptibly();
+
+        Thread.sleep(3000);
+        assertEquals(0, service.getSessions().size());
+    }
+
+    /** The next poll on a connection may arrive as soon as the heartbeat answering the last one from a timer is out */
+    @Test
+    public void heldPollsOverPersistentConnection() throws Exception {
+        final Channel channel = connect();
+        final ResponseHandler handler = channel.getPipeline().get(ResponseHandler.class);
+        final String uri = "/echo/000/held/xhr";
+
+        channel.write(request(HttpMethod.POST, uri));
+        assertEquals("o\n", handler.poll(uri).getContent().toString(CharsetUtil.UTF_8));
+        handler.repollUri = uri;
+        channel.write(request(HttpMethod.POST, uri));
+        for (int i = 0; i < 3; i++) {
+            assertEquals("h\n", handler.poll(uri).getContent().toString(CharsetUtil.UTF_8));
+        }
+        handler.repollUri = null;
+        channel.close().awaitUninterruptibly();
+    }
+
+    private static Channel connect() {
+        return bootstrap.connect(new LocalAddress(PORT)).awaitUninterruptibly().getChannel();
+    }
+
+    private static HttpRequest request(HttpMethod method, String uri) {
+        HttpRequest request = new DefaultHttpRequest(HttpVersion.HTTP_1_1, method, uri);
+        request.setHeader(HttpHeaders.Names.HOST, "localhost");
+        return request;
+    }
+
+    private static class ResponseHandler extends SimpleChannelUpstreamHandler {
+        private final BlockingQueue<HttpResponse> responses = new LinkedBlockingQueue<HttpResponse>();
+        /** Polled again from within the response to the last poll, if set */
+        private volatile String repollUri;
+
+        HttpResponse poll(String what) throws InterruptedException {
+            HttpResponse response = responses.poll(5, TimeUnit.SECONDS);
+            if (response == null) {
+                throw new IllegalStateException("No response to " + what);
+            }
+            return response;
+        }
+
+        @Override
+        public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            responses.offer((HttpResponse) e.getMessage());
+            final String uri = repollUri;
+            if (uri != null) {
+                e.getChannel().write(request(HttpMethod.POST, uri));
+            }
+        }
+    }
+}
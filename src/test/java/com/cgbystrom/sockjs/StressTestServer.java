@@ -39,6 +39,7 @@ public class StressTestServer {
         });
         router.registerService(echoService);
 
+        final PreflightHandler preflight = new PreflightHandler();
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
@@ -46,7 +47,7 @@ public class StressTestServer {
                 pipeline.addLast("decoder", new HttpRequestDecoder());
                 pipeline.addLast("chunkAggregator", new HttpChunkAggregator(130 * 1024)); // Required for WS handshaker or else NPE.
                 pipeline.addLast("encoder", new HttpResponseEncoder());
-                pipeline.addLast("preflight", new PreflightHandler());
+                pipeline.addLast("preflight", preflight);
                 pipeline.addLast("router", router);
                 return pipeline;
             }
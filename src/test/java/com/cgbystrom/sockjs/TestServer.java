@@ -81,6 +81,7 @@ public class TestServer {
         cookieNeededEcho.setCookieNeeded(true);
         router.registerService(cookieNeededEcho);
 
+        final PreflightHandler preflight = new PreflightHandler();
         bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
             @Override
             public ChannelPipeline getPipeline() throws Exception {
@@ -88,7 +89,7 @@ public class TestServer {
                 pipeline.addLast("decoder", new HttpRequestDecoder());
                 pipeline.addLast("chunkAggregator", new HttpChunkAggregator(130 * 1024)); // Required for WS handshaker or else NPE.
                 pipeline.addLast("encoder", new HttpResponseEncoder());
-                pipeline.addLast("preflight", new PreflightHandler());
+                pipeline.addLast("preflight", preflight);
                 pipeline.addLast("router", router);
                 return pipeline;
             }